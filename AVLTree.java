@@ -1,3 +1,52 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
 
 /**
 *
@@ -11,6 +60,21 @@
 public class AVLTree {
 
 	IAVLNode root, min, max;
+	//bounded mode, capacity 0 means the tree is not bounded
+	int capacity;
+	EvictionPolicy policy;
+	EvictionListener evictionListener;
+	EvictionListener evictionHook; //internal, called before evictionListener by a BatchWriter keeping its snapshot in step
+	AVLNode lruHead, lruTail; //the access list of LRU mode, most recently used at the head
+	long hits, misses, evictions;
+	//lazy delete mode, off while maxDeadFraction is 0
+	double maxDeadFraction;
+	int deadCount; //nodes marked as deleted but still in the tree
+	boolean compacting; //the dead nodes went over the limit, every change removes some of them until none is left
+	static final int COMPACT_STEP = 4; //dead nodes removed per change while compacting
+	//balance monitor, the counters go with the pieces of a split and into the tree of a join
+	long splits, splitJoinCost, rebuilds;
+	int lastSplitJoinCost;
 	/**
 	 * public AVLTree()
 	 * 
@@ -24,7 +88,8 @@ public class AVLTree {
 	 * public AVLTree(IAVLNode x)
 	 * 
 	 * Constructor that recives a node, and it sets as the root of the tree
-	 * saves the parent of it as null
+	 * saves the parent of it as null (the root is a copy of x, the children of x are moved under it)
+	 * lazily deleted nodes of the subtree are counted, a subtree with only dead nodes gives an empty tree
 	 * it finds the minumal node in the tree by going to the left most node in the tree O(log n)
 	 * it finds the maximal node in the tree by going to the right most node in the tree O(log n)
 	 * O(1) + O(log n) + O(log n) = O(log n)
@@ -32,14 +97,33 @@ public class AVLTree {
 	public AVLTree(IAVLNode x) {
 		if(x!=null && x.isRealNode()) {
 		root = new AVLNode(x.getKey(),x.getValue());
+		((AVLNode)root).dead = x instanceof AVLNode && ((AVLNode)x).dead; //a lazily deleted node stays deleted in the copy
 		root.setRight(x.getRight());
 		root.setLeft(x.getLeft());
+		root.getRight().setParent(root); //the children of x now hang from the copy
+		root.getLeft().setParent(root);
 		root.setParent(null);
+		countDead();
 		updateMinMax();
 		}
 		else {
 			root=null;
 		}
+	}
+	/**
+	 * public AVLTree(int capacity, EvictionPolicy policy)
+	 * 
+	 * Constructor for an empty bounded tree, which is used as an ordered cache.
+	 * once an insert makes the size go over capacity, one node is evicted inside that insert:
+	 * the min node, the max node, or the least recently used node (LRU keeps an access list on the nodes
+	 * which insert and search move to the front), so no extra search is needed.
+	 * split and join do not keep the bound
+	 * O(1)
+	 */
+	public AVLTree(int capacity, EvictionPolicy policy) {
+		this();
+		this.capacity = capacity;
+		this.policy = policy;
 	}
 	  /**
 	   * public boolean empty()
@@ -63,25 +147,126 @@ public class AVLTree {
   * 
   * it uses the function searchNode(int k) to get the node which has the key k
   * if it exists, it returns it's value, otherwise it returns null
+  * counts a hit or a miss, and in LRU mode moves the node to the front of the access list
   * O(log n)
   */
    public String search(int k){
 	  IAVLNode node = searchNode(k);
 	  if(node!=null) {
+		  hits++;
+		  if(policy == EvictionPolicy.LRU) {
+			  lruMoveToHead((AVLNode)node);
+		  }
 		  return node.getValue();
 	  }
+	  misses++;
 	  return null;
  }
+  /**
+   * public void searchAll(int[] keys, String[] out)
+   *
+   * looks up many keys at once: out[i] gets the info of keys[i], or null if it is not in the tree.
+   * the probes are sorted (unless they already come sorted) and resolved in one recursive pass from the root,
+   * which splits the sorted probes at every node into the ones smaller and bigger than the node's key,
+   * so the upper levels shared by many probes are visited once instead of once per probe.
+   * hits, misses and LRU are counted like in search
+   * precondition: out.length >= keys.length
+   * 
+   * sorting m probes O(m log m), every visited node does a binary search on its probes O(log m),
+   * at most min(n, m*log n) nodes are visited
+   */
+   public void searchAll(int[] keys, String[] out) {
+	   int m = keys.length;
+	   boolean sorted = true;
+	   for(int i=1;i<m && sorted;i++) {
+		   sorted = keys[i-1] <= keys[i];
+	   }
+	   if(sorted) {
+		   searchAll(root, keys, null, 0, m, out);
+		   return;
+	   }
+	   long[] probes = new long[m]; //key in the high half, original position in the low half
+	   for(int i=0;i<m;i++) {
+		   probes[i] = ((long)keys[i] << 32) | i;
+	   }
+	   Arrays.sort(probes);
+	   int[] sortedKeys = new int[m];
+	   int[] index = new int[m];
+	   for(int i=0;i<m;i++) {
+		   sortedKeys[i] = (int)(probes[i] >> 32);
+		   index[i] = (int)probes[i];
+	   }
+	   searchAll(root, sortedKeys, index, 0, m, out);
+   }
+   /**
+    * private void searchAll(IAVLNode node, int[] keys, int[] index, int lo, int hi, String[] out)
+    *
+    * resolves the sorted probes keys[lo..hi) in the subtree of node,
+    * index[i] is the position in out of probe i (null when the probes were given sorted)
+    */
+   private void searchAll(IAVLNode node, int[] keys, int[] index, int lo, int hi, String[] out) {
+	   if(lo >= hi) {
+		   return;
+	   }
+	   if(node == null || !node.isRealNode()) {
+		   for(int i=lo;i<hi;i++) {
+			   out[index == null ? i : index[i]] = null;
+		   }
+		   misses += hi-lo;
+		   return;
+	   }
+	   int k = node.getKey();
+	   int a = lo, b = hi;
+	   while(a < b) { //first probe >= k
+		   int mid = (a+b) >>> 1;
+		   if(keys[mid] < k) {
+			   a = mid+1;
+		   }
+		   else {
+			   b = mid;
+		   }
+	   }
+	   int end = a;
+	   String value = isDead(node) ? null : node.getValue();
+	   while(end < hi && keys[end] == k) { //the same key may be asked more than once
+		   out[index == null ? end : index[end]] = value;
+		   end++;
+	   }
+	   if(end > a && isDead(node)) {
+		   misses += end-a;
+	   }
+	   else if(end > a) {
+		   hits += end-a;
+		   if(policy == EvictionPolicy.LRU) {
+			   lruMoveToHead((AVLNode)node);
+		   }
+	   }
+	   searchAll(node.getLeft(), keys, index, lo, a, out);
+	   searchAll(node.getRight(), keys, index, end, hi, out);
+   }
   /**
    * public IAVLNode searchNode(int k)
    * 
    * returns the node of an item with the key k it it exists in the tree 
-   * otherwise, returns null
+   * otherwise (or if it was lazily deleted), returns null
    * 
    * it starts from the root and does a binary search on the tree until it gets to the node needed, or returns null
    * O(log n)
    */
 	public IAVLNode searchNode(int k) {
+	  IAVLNode node = findNode(k);
+	  if(node!=null && isDead(node)) { //lazily deleted
+		  return null;
+	  }
+	  return node;
+   }
+  /**
+   * private IAVLNode findNode(int k)
+   * 
+   * the search of searchNode, it also returns a node which was lazily deleted
+   * O(log n)
+   */
+	private IAVLNode findNode(int k) {
  	  if(empty()) { //check if the tree is empty
  		  return null;
  	  }
@@ -112,20 +297,30 @@ public class AVLTree {
   * promotion/rotation - counted as one rebalance operation, double-rotation is counted as 2.
   * returns -1 if an item with key k already exists in the tree.
   * 
+  * if k was lazily deleted its node is brought back instead, without rebalancing
   * inserting the node takes O(log n)
   * call of rebalanceInsert which costs O(log n)
+  * in bounded mode, if the size went over capacity, evict() deletes one node and its rebalancing operations are added, O(log n)
   * => complexity of this function is : O(log n) + O(log n)+ O(log n) = O(log n)
   */
 	
    public int insert(int k, String i) {
 	   int cntRotations = 0;
-	   if(searchNode(k)!=null) { //check if already exists
-		   return -1;
+	   IAVLNode found = findNode(k);
+	   if(found!=null) { //check if already exists
+		   if(!isDead(found)) {
+			   return -1;
+		   }
+		   revive(found, i); //a lazily deleted node is brought back where it is, no rebalancing needed
+		   return afterInsert(found, 0);
 	   }
 	   IAVLNode x = new AVLNode(k,i);
 	   if(empty()) { //in case the tree is empty
 		   root = x;
 		   min = max = x;
+		   if(policy == EvictionPolicy.LRU) {
+			   lruMoveToHead((AVLNode)x);
+		   }
 		   return 0;
 	   }
 	   IAVLNode temp = root;
@@ -158,8 +353,26 @@ public class AVLTree {
 	   updateMinMax();
 	   x.updateHeightSize();
 	   root.updateHeightSize();
-	   return cntRotations;	
+	   return afterInsert(x, cntRotations);	
   }
+   /**
+    * private int afterInsert(IAVLNode x, int cntRotations)
+    *
+    * the end of every insert of a node x: in LRU mode x goes to the front of the access list,
+    * in bounded mode one node is evicted if the size went over capacity.
+    * returns cntRotations with the rebalancing operations of the eviction added
+    * O(log n)
+    */
+   private int afterInsert(IAVLNode x, int cntRotations) {
+	   if(policy == EvictionPolicy.LRU) {
+		   lruMoveToHead((AVLNode)x);
+	   }
+	   if(capacity > 0 && size() > capacity) { //bounded mode, evict one node in the same insert
+		   cntRotations += evict();
+	   }
+	   afterMutation();
+	   return cntRotations;
+   }
    /**
     * public void leftRotation(IAVLNode x)
     * 
@@ -290,10 +503,10 @@ public class AVLTree {
   * demotion/rotation - counted as one rebalnce operation, double-rotation is counted as 2.
   * returns -1 if an item with key k was not found in the tree.
   * 
-  * it uses findSuccessor to replace it with the deleted node if needed which costs O(log n)
-  * it uses rebalanceDelted which costs O(log n) after deleting the node
+  * it finds the node with searchNode, O(log n), and deletes it with deleteNode, O(log n)
+  * in lazy delete mode the node is only marked with markDead instead, and 0 is returned
   * 
-  * ==> O(log n)+O(log n)+O(log n) = O(log n)
+  * ==> O(log n)+O(log n) = O(log n)
   */
    public int delete(int k)
   {
@@ -301,108 +514,413 @@ public class AVLTree {
 	   if(node==null) {
 		   return -1;
 	   }
+	   int cnt = 0;
+	   if(maxDeadFraction > 0) { //lazy delete mode
+		   markDead(node);
+	   }
+	   else {
+		   cnt = deleteNode(node);
+	   }
+	   afterMutation();
+	   return cnt;
+  }
+   /**
+  * public int deleteNode(IAVLNode node)
+  *
+  * deletes the given node of the tree, without searching for it again.
+  * returns the number of rebalancing operations, like delete.
+  * 
+  * a node with at most one child is replaced by that child,
+  * a node with two children is replaced by its successor (the node itself is moved, not its key and info)
+  * it uses findSuccessor to replace it with the deleted node if needed which costs O(log n)
+  * it uses rebalanceDelted which costs O(log n) after deleting the node
+  * 
+  * ==> O(log n)+O(log n) = O(log n)
+  */
+   public int deleteNode(IAVLNode node)
+  {
+	   if(policy == EvictionPolicy.LRU) {
+		   lruUnlink((AVLNode)node);
+	   }
 	   IAVLNode parent = node.getParent();
-	   if(!node.getLeft().isRealNode() && !node.getRight().isRealNode()) {
-		   if (parent== null) {
-			   root = null;
-			   return 0;
-		   }
-
-		   else if( parent.getLeft()==node) {
-			   parent.setLeft(new VirtualNode());
-			   return rebalanceDelete(parent);
+	   IAVLNode start; //the lowest node whose subtree changed, rebalancing starts from it
+	   if(!node.getLeft().isRealNode() || !node.getRight().isRealNode()) {
+		   IAVLNode child = node.getLeft().isRealNode() ? node.getLeft() : node.getRight();
+		   replaceChild(parent, node, child);
+		   start = parent;
+	   }
+	   else {
+		   IAVLNode succ = findSuccessor(node);
+		   IAVLNode parentSucc = succ.getParent();
+		   if(parentSucc == node) { //the successor is the right child of node
+			   start = succ;
 		   }
 		   else {
-			   parent.setRight(new VirtualNode());
-			   return rebalanceDelete(parent);
+			   parentSucc.setLeft(succ.getRight());
+			   succ.getRight().setParent(parentSucc);
+			   succ.setRight(node.getRight());
+			   node.getRight().setParent(succ);
+			   start = parentSucc;
 		   }
+		   succ.setLeft(node.getLeft());
+		   node.getLeft().setParent(succ);
+		   replaceChild(parent, node, succ);
 	   }
-	   else if(!node.getLeft().isRealNode() || !node.getRight().isRealNode()) {
-		   if(parent==null) {
-			   if( node.getLeft().isRealNode()) {
-				   root = node.getLeft();
-				   root.setParent(null);
-				   return 0;
-				  
-			   }
-			   else {
-				   root = node.getRight();
-				   root.setParent(null);
-				   return 0;
-				   
-			   }
+	   node.setParent(null);
+	   node.setLeft(null);
+	   node.setRight(null);
+	   if(empty()) {
+		   root = min = max = null;
+		   return 0;
+	   }
+	   int cnt = rebalanceDelete(start);
+	   if(size() == 0) { //only lazily deleted nodes are left, drop them too, like markDead
+		   root = min = max = null;
+		   deadCount = 0;
+	   }
+	   return cnt;
+  }
+   /**
+    * private void replaceChild(IAVLNode parent, IAVLNode old, IAVLNode child)
+    *
+    * puts child in the place of old under parent (or as the root if parent is null)
+    * O(1)
+    */
+   private void replaceChild(IAVLNode parent, IAVLNode old, IAVLNode child) {
+	   if(parent == null) {
+		   root = child.isRealNode() ? child : null;
+	   }
+	   else if(parent.getLeft() == old) {
+		   parent.setLeft(child);
+	   }
+	   else {
+		   parent.setRight(child);
+	   }
+	   if(child.isRealNode()) {
+		   child.setParent(parent);
+	   }
+   }
+   /**
+    * public void setLazyDelete(double maxDeadFraction)
+    *
+    * turns on lazy delete mode when maxDeadFraction > 0: delete only marks the node as dead (markDead),
+    * and once the dead nodes are more than maxDeadFraction of all the nodes they are removed incrementally:
+    * every insert and delete after that removes up to COMPACT_STEP of them (compactStep) until none is left.
+    * 0 turns it off and compacts the tree right away
+    * O(1), or O(n) if it compacts
+    */
+   public void setLazyDelete(double maxDeadFraction) {
+	   this.maxDeadFraction = maxDeadFraction;
+	   if(maxDeadFraction <= 0) {
+		   compact();
+	   }
+   }
+   //returns the number of lazily deleted nodes which are still in the tree
+   public int getDeadCount() {
+	   return deadCount;
+   }
+   /**
+    * private void markDead(IAVLNode node)
+    *
+    * the delete of lazy delete mode: the node stays in the tree but is marked as dead,
+    * and the live counts of it and its ancestors go down by one. there are no rotations.
+    * min/max move to the nearest live node if needed, a tree left with no live nodes is emptied,
+    * and if the dead nodes went over the configured fraction an incremental compaction starts (checkDead)
+    * O(log n)
+    */
+   private void markDead(IAVLNode node) {
+	   ((AVLNode)node).dead = true;
+	   deadCount++;
+	   for(IAVLNode temp = node; temp != null; temp = temp.getParent()) {
+		   ((AVLNode)temp).live--;
+	   }
+	   if(policy == EvictionPolicy.LRU) {
+		   lruUnlink((AVLNode)node);
+	   }
+	   if(size() == 0) {
+		   root = min = max = null;
+		   deadCount = 0;
+		   return;
+	   }
+	   if(node == min) {
+		   min = liveSuccessor(node);
+	   }
+	   if(node == max) {
+		   max = livePredecessor(node);
+	   }
+	   checkDead();
+   }
+   //starts an incremental compaction if the dead nodes are over the configured fraction (any dead node while lazy delete is off)
+   private void checkDead() {
+	   if(root != null && deadCount > maxDeadFraction * root.getSize()) {
+		   compacting = true;
+	   }
+   }
+   //sets deadCount from the sizes of the root, and empties a tree which has only dead nodes, O(1)
+   private void countDead() {
+	   if(empty() || live(root) == 0) {
+		   root = min = max = null;
+		   deadCount = 0;
+		   return;
+	   }
+	   deadCount = root.getSize() - live(root);
+   }
+   /**
+    * private void compactStep()
+    *
+    * one step of an incremental compaction: removes up to COMPACT_STEP dead nodes with deleteNode.
+    * a dead node is found from the root by going down into a child whose size is bigger than its live count,
+    * so each one costs a descent and a delete. the compaction ends when no dead node is left
+    * O(log n) per step
+    */
+   private void compactStep() {
+	   for(int i=0;i<COMPACT_STEP && compacting;i++) {
+		   if(deadCount == 0 || root == null) {
+			   compacting = false;
+			   return;
 		   }
-		   else if(node.getLeft().isRealNode()) {
-			   if(parent.getLeft()==node) {
-				   parent.setLeft(node.getLeft());
-				   node.getLeft().setParent(parent);
-				   return rebalanceDelete(parent);
-			   }
-			   else {
-				   parent.setRight(node.getLeft());
-				   node.getLeft().setParent(parent);
-				   return rebalanceDelete(parent);
-			   }
+		   IAVLNode node = root;
+		   while(!isDead(node)) {
+			   IAVLNode left = node.getLeft();
+			   node = left.getSize() > live(left) ? left : node.getRight();
 		   }
-		   else{
-			   if(parent.getLeft()==node) {
-				   parent.setLeft(node.getRight());
-				   node.getRight().setParent(parent);
-				   return rebalanceDelete(parent);
-			   }
-			   else {
-				   parent.setRight(node.getRight());
-				   node.getRight().setParent(parent);
-				   return rebalanceDelete(parent);
-			   }
+		   deadCount--;
+		   deleteNode(node);
+	   }
+   }
+   /**
+    * private void revive(IAVLNode node, String info)
+    *
+    * brings a dead node back with new info, the opposite of markDead
+    * O(log n)
+    */
+   private void revive(IAVLNode node, String info) {
+	   AVLNode n = (AVLNode)node;
+	   n.dead = false;
+	   n.info = info;
+	   deadCount--;
+	   for(IAVLNode temp = node; temp != null; temp = temp.getParent()) {
+		   ((AVLNode)temp).live++;
+	   }
+	   if(min == null || node.getKey() < min.getKey()) {
+		   min = node;
+	   }
+	   if(max == null || node.getKey() > max.getKey()) {
+		   max = node;
+	   }
+   }
+   /**
+    * public void compact()
+    *
+    * rebuilds the tree from its live nodes at once, dropping all the lazily deleted ones.
+    * the live nodes are collected in order and linked again as a balanced tree by buildBalanced,
+    * the nodes themselves are kept (so the LRU access list stays valid).
+    * lazy delete mode itself never calls it, it compacts incrementally with compactStep
+    * ==> O(n)
+    */
+   public void compact() {
+	   if(deadCount == 0) {
+		   return;
+	   }
+	   rebuild();
+   }
+   /**
+    * public void rebuild()
+    *
+    * rebuilds the whole tree as a perfectly balanced one (the fewest levels possible) from its live nodes,
+    * the same way compact does, so the lazily deleted nodes are dropped too
+    * ==> O(n)
+    */
+   public void rebuild() {
+	   compacting = false;
+	   if(root == null) {
+		   return;
+	   }
+	   rebuilds++;
+	   IAVLNode[] nodes = nodeToArray();
+	   deadCount = 0;
+	   if(nodes.length == 0) { //only lazily deleted nodes were left
+		   root = min = max = null;
+		   return;
+	   }
+	   root = buildBalanced(nodes, 0, nodes.length);
+	   root.setParent(null);
+	   min = nodes[0];
+	   max = nodes[nodes.length-1];
+   }
+   /**
+    * public double getHeightRatio()
+    *
+    * the balance monitor: the number of levels of the tree (height+1) divided by the most levels
+    * an AVL tree of n nodes can have (maxLevels, the 1.44*log2(n) bound).
+    * a perfect tree of a million nodes is at about 0.7, a valid AVL tree is never over 1,
+    * so a ratio over 1 means the heights are broken (verify() finds where).
+    * there is no automatic rebuild: an AVL tree can not drift past the bound, rebuild() is there to call explicitly
+    * (n counts the lazily deleted nodes too, they are still in the tree)
+    * O(log n)
+    */
+   public double getHeightRatio() {
+	   if(root == null) {
+		   return 0;
+	   }
+	   return (root.getHeight()+1) / (double)maxLevels(root.getSize());
+   }
+   //the most levels an AVL tree of n nodes can have: the largest h whose sparsest AVL tree (N(h) = N(h-1)+N(h-2)+1) fits in n
+   static int maxLevels(int n) {
+	   int h = 0;
+	   long prev = 0, cur = 0; //N(h-1), N(h)
+	   while(true) {
+		   long next = h == 0 ? 1 : cur + prev + 1;
+		   if(next > n) {
+			   return h;
 		   }
+		   prev = cur;
+		   cur = next;
+		   h++;
 	   }
-	   else {
-		   IAVLNode succ = findSuccessor(node);
-		   IAVLNode rightSucc = succ.getRight();
-		   IAVLNode parentSucc = succ.getParent();
-		   if(node == parentSucc && parent == null) {
-			   root = succ;
-			   root.setLeft(node.getLeft());
-			   node.getLeft().setParent(root);
-			   root.setParent(null);
-			   if(rightSucc==null || !rightSucc.isRealNode()) {
-				   return rebalanceDelete(root.getLeft());
+   }
+   //returns the number of splits of this tree
+   public long getSplits() {
+	   return splits;
+   }
+   //returns the sum of the join costs of all the splits of this tree
+   public long getSplitJoinCost() {
+	   return splitJoinCost;
+   }
+   //returns the sum of the join costs of the last split of this tree
+   public int getLastSplitJoinCost() {
+	   return lastSplitJoinCost;
+   }
+   //returns the number of times the tree was rebuilt (rebuild, compact)
+   public long getRebuilds() {
+	   return rebuilds;
+   }
+   /**
+    * private void afterMutation()
+    *
+    * called after every change of the tree, does a step of a running compaction (compactStep)
+    * O(1), O(log n) while compacting
+    */
+   private void afterMutation() {
+	   compactStep();
+   }
+   /**
+    * public boolean verify()
+    *
+    * checks every invariant of the tree from scratch: the keys are in order, the parent pointers match,
+    * the heights, sizes and live counts are right and every balance factor is between -1 and 1.
+    * returns false if anything is wrong
+    * O(n)
+    */
+   public boolean verify() {
+	   if(root == null) {
+		   return true;
+	   }
+	   return root.getParent() == null && verify(root, Long.MIN_VALUE, Long.MAX_VALUE) != -2;
+   }
+   //verifies the subtree of node, whose keys have to be in (lo, hi). returns its height, or -2 if it is not valid
+   private int verify(IAVLNode node, long lo, long hi) {
+	   if(!node.isRealNode()) {
+		   return -1;
+	   }
+	   IAVLNode left = node.getLeft(), right = node.getRight();
+	   if(node.getKey() <= lo || node.getKey() >= hi
+			   || (left.isRealNode() && left.getParent() != node) || (right.isRealNode() && right.getParent() != node)) {
+		   return -2;
+	   }
+	   int hl = verify(left, lo, node.getKey());
+	   int hr = verify(right, node.getKey(), hi);
+	   if(hl == -2 || hr == -2 || Math.abs(hl-hr) > 1 || node.getHeight() != Math.max(hl, hr)+1
+			   || node.getSize() != left.getSize()+right.getSize()+1
+			   || ((AVLNode)node).getLiveSize() != ((AVLNode)left).getLiveSize()+((AVLNode)right).getLiveSize()+(isDead(node) ? 0 : 1)) {
+		   return -2;
+	   }
+	   return node.getHeight();
+   }
+   //returns true if node was lazily deleted
+   private static boolean isDead(IAVLNode node) {
+	   return ((AVLNode)node).dead;
+   }
+   //the number of live nodes in the subtree of node, 0 for a virtual node
+   private static int live(IAVLNode node) {
+	   return ((AVLNode)node).getLiveSize();
+   }
+   /**
+    * private IAVLNode liveSuccessor(IAVLNode x)
+    *
+    * the next node in key order which is not dead, or null.
+    * like findSuccessor, but the live counts are used to skip every subtree with no live node:
+    * it goes up from x until a live ancestor on the right or a right subtree with live nodes,
+    * and then down to the first live node of that subtree (firstLive)
+    * O(log n) however many dead nodes are in between
+    */
+   private IAVLNode liveSuccessor(IAVLNode x) {
+	   if(live(x.getRight()) > 0) {
+		   return firstLive(x.getRight());
+	   }
+	   IAVLNode child = x, temp = x.getParent();
+	   while(temp != null && temp.isRealNode()) {
+		   if(temp.getLeft() == child) { //temp is after everything we came from
+			   if(!isDead(temp)) {
+				   return temp;
 			   }
-			   else {
-				   return rebalanceDelete(rightSucc);
+			   if(live(temp.getRight()) > 0) {
+				   return firstLive(temp.getRight());
 			   }
 		   }
-		   else if(parentSucc.getLeft()==succ) {
-			   succ.setLeft(node.getLeft());
-			   succ.setRight(node.getRight());
-			   succ.setParent(parent);
-			   if( parent !=null && parent.getLeft()==node) {
-				   parent.setLeft(succ);
+		   child = temp;
+		   temp = temp.getParent();
+	   }
+	   return null;
+   }
+   //the previous node in key order which is not dead, or null, the mirror of liveSuccessor, O(log n)
+   private IAVLNode livePredecessor(IAVLNode x) {
+	   if(live(x.getLeft()) > 0) {
+		   return lastLive(x.getLeft());
+	   }
+	   IAVLNode child = x, temp = x.getParent();
+	   while(temp != null && temp.isRealNode()) {
+		   if(temp.getRight() == child) {
+			   if(!isDead(temp)) {
+				   return temp;
 			   }
-			   else if(parent!=null){
-				   parent.setRight(succ);
+			   if(live(temp.getLeft()) > 0) {
+				   return lastLive(temp.getLeft());
 			   }
-			   parentSucc.setLeft(rightSucc);
-			   rightSucc.setParent(parentSucc);
-			   return rebalanceDelete(rightSucc);
+		   }
+		   child = temp;
+		   temp = temp.getParent();
+	   }
+	   return null;
+   }
+   //the smallest live node in the subtree of node, which has at least one, O(log n)
+   private static IAVLNode firstLive(IAVLNode node) {
+	   while(true) {
+		   if(live(node.getLeft()) > 0) {
+			   node = node.getLeft();
+		   }
+		   else if(!isDead(node)) {
+			   return node;
 		   }
 		   else {
-			   succ.setLeft(node.getLeft());
-			   succ.setRight(node.getRight());
-			   succ.setParent(parent);
-			   if( parent !=null && parent.getLeft()==node) {
-				   parent.setLeft(succ);
-			   }
-			   else if(parent!=null){
-				   parent.setRight(succ);
-			   }
-			   parentSucc.setRight(rightSucc);
-			   rightSucc.setParent(parentSucc);
-			   return rebalanceDelete(rightSucc);
+			   node = node.getRight();
 		   }
 	   }
-  }
+   }
+   //the largest live node in the subtree of node, which has at least one, O(log n)
+   private static IAVLNode lastLive(IAVLNode node) {
+	   while(true) {
+		   if(live(node.getRight()) > 0) {
+			   node = node.getRight();
+		   }
+		   else if(!isDead(node)) {
+			   return node;
+		   }
+		   else {
+			   node = node.getLeft();
+		   }
+	   }
+   }
    /**
     *public int rebalanceDelete(IAVLNode x)
     *
@@ -480,6 +998,136 @@ public class AVLTree {
 	   }
 	   return null;
   }
+   /**
+    *public IAVLNode findPredecessor(IAVLNode x)
+    *the mirror of findSuccessor, it either goes to the right most of the left child
+    *or goes up until the first left
+    *
+    *==> O(log n)
+    *
+    */
+   public IAVLNode findPredecessor(IAVLNode x) {
+	   IAVLNode temp = x.getLeft();
+	   if(temp.isRealNode()) { 
+		   while(temp.getRight().isRealNode()) { //while temp has a right
+			   temp = temp.getRight();
+		   }
+		   return temp;
+	   }
+	   else {
+		   temp=x.getParent();
+		   while(temp!=null && temp.isRealNode()) { //while temp is not out of the tree
+			   if(temp.getKey()<x.getKey()) {
+				   return temp;
+			   }
+			   temp=temp.getParent();
+		   }
+	   }
+	   return null;
+  }
+   /**
+    * public IAVLNode floor(int k)
+    *
+    * returns the node with the largest key <= k, or null if there is none
+    * one walk down from the root, remembering the last node where we went right
+    * O(log n)
+    */
+   public IAVLNode floor(int k) {
+	   return below(k, true);
+   }
+   /**
+    * public IAVLNode lower(int k)
+    *
+    * returns the node with the largest key < k, or null if there is none
+    * O(log n)
+    */
+   public IAVLNode lower(int k) {
+	   return below(k, false);
+   }
+   /**
+    * public IAVLNode ceiling(int k)
+    *
+    * returns the node with the smallest key >= k, or null if there is none
+    * one walk down from the root, remembering the last node where we went left
+    * O(log n)
+    */
+   public IAVLNode ceiling(int k) {
+	   return above(k, true);
+   }
+   /**
+    * public IAVLNode higher(int k)
+    *
+    * returns the node with the smallest key > k, or null if there is none
+    * O(log n)
+    */
+   public IAVLNode higher(int k) {
+	   return above(k, false);
+   }
+   //the largest live node with key < k (or <= k if inclusive), a dead one found by the walk is replaced
+   //by livePredecessor, which skips the dead subtrees ==> O(log n)
+   private IAVLNode below(int k, boolean inclusive) {
+	   IAVLNode temp = root, best = null;
+	   while(temp!=null && temp.isRealNode()) {
+		   if(temp.getKey()<k || (inclusive && temp.getKey()==k)) {
+			   best = temp;
+			   temp = temp.getRight();
+		   }
+		   else {
+			   temp = temp.getLeft();
+		   }
+	   }
+	   return best != null && isDead(best) ? livePredecessor(best) : best;
+   }
+   //the smallest live node with key > k (or >= k if inclusive), the mirror of below ==> O(log n)
+   private IAVLNode above(int k, boolean inclusive) {
+	   IAVLNode temp = root, best = null;
+	   while(temp!=null && temp.isRealNode()) {
+		   if(temp.getKey()>k || (inclusive && temp.getKey()==k)) {
+			   best = temp;
+			   temp = temp.getLeft();
+		   }
+		   else {
+			   temp = temp.getRight();
+		   }
+	   }
+	   return best != null && isDead(best) ? liveSuccessor(best) : best;
+   }
+   /**
+    * public Iterator<IAVLNode> descendingIterator()
+    *
+    * iterates over the nodes from max down to min, using livePredecessor
+    * O(1) to create, the whole iteration is O(n) like nodeToArray
+    */
+   public Iterator<IAVLNode> descendingIterator() {
+	   return new DescendingIterator(empty() ? null : max);
+   }
+   /**
+    * public Iterator<IAVLNode> descendingIterator(int k)
+    *
+    * iterates over the nodes with keys <= k in descending order, starting at floor(k)
+    * O(log n) to create
+    */
+   public Iterator<IAVLNode> descendingIterator(int k) {
+	   return new DescendingIterator(floor(k));
+   }
+   //walks the tree backwards with livePredecessor (dead subtrees are skipped), the tree must not be changed while iterating
+   private class DescendingIterator implements Iterator<IAVLNode> {
+	   private IAVLNode next;
+	   DescendingIterator(IAVLNode start) {
+		   next = start;
+	   }
+	   public boolean hasNext() {
+		   return next != null && next.isRealNode();
+	   }
+	   public IAVLNode next() {
+		   if(!hasNext()) {
+			   throw new NoSuchElementException();
+		   }
+		   IAVLNode cur = next;
+		   next = livePredecessor(cur);
+		   return cur;
+	   }
+   }
   /**
    * public String min()
    *
@@ -517,14 +1165,15 @@ public class AVLTree {
   * Returns a sorted array which contains all the nodes in the tree,
   * or an empty array if the tree is empty.
   * by calling for the successor n-1 starting from min times, which proven to be of complexity O(n)
+  * (lazily deleted nodes are skipped)
   */
    public IAVLNode[] nodeToArray() {
-   	IAVLNode[] arr = new IAVLNode[root.getSize()];
+   	IAVLNode[] arr = new IAVLNode[size()];
    	IAVLNode temp = min;
    	int i=0;
    	while(temp!=null && temp.isRealNode()) {
    		arr[i] = temp;
-   		temp = findSuccessor(temp);
+   		temp = liveSuccessor(temp);
    		i++;
    	}
    	return arr;
@@ -539,8 +1188,8 @@ public class AVLTree {
     * ==> O(n) + O(n) = O(n)
     */   
    public int[] keysToArray(){
-       int[] arr = new int[root.getSize()]; 
        IAVLNode[] nodeArr = nodeToArray();
+       int[] arr = new int[nodeArr.length]; 
        for(int i=0;i<nodeArr.length;i++) {
        	arr[i] = nodeArr[i].getKey();
        }
@@ -558,8 +1207,8 @@ public class AVLTree {
   * ==> O(n)+O(n)  =O(n)
   */
    public String[] infoToArray(){
-       String[] arr = new String[root.getSize()];
        IAVLNode[] nodeArr = nodeToArray();
+       String[] arr = new String[nodeArr.length];
        for(int i=0;i<nodeArr.length;i++) {
        	arr[i] = nodeArr[i].getValue();
        }
@@ -569,7 +1218,7 @@ public class AVLTree {
   /**
    * public int size()
    *
-   * Returns the number of nodes in the tree.
+   * Returns the number of nodes in the tree (lazily deleted nodes are not counted).
    *
    * precondition: none
    * postcondition: none
@@ -580,7 +1229,7 @@ public class AVLTree {
 	   if(root==null) {
 		   return 0;
 	   }
- 		return root.getSize(); 
+ 		return ((AVLNode)root).getLiveSize(); 
    }
   
     /**
@@ -610,13 +1259,18 @@ public class AVLTree {
    * the height of the node that needs splitting is at most log n
    * the two trees it needs to join each step use the complexity O(1/2log(n)*2)=O(logn)
    * ==> O(log n)*O(log n)=O((logn)^2)
+   * the sum of the costs of the joins is kept by the balance monitor (getLastSplitJoinCost, getSplitJoinCost),
+   * this tree is used up by the split, so both pieces carry its counters with this split added
+   * lazily deleted nodes go into the pieces as they are (the copies of the joining nodes stay dead),
+   * the pieces keep the lazy delete setting and compact them incrementally like any tree
    */   
 
  	 public AVLTree[] split(int x){
  		 IAVLNode node = searchNode(x);
  		 AVLTree T1 = new AVLTree(node.getLeft());
  		 AVLTree T2 = new AVLTree(node.getRight());
- 		 int height = root.getSize();
+ 		 T1.maxDeadFraction = T2.maxDeadFraction = maxDeadFraction; //before the joins, which check the dead nodes
+ 		 int height = root.getHeight()+1; //the number of ancestors of node is at most the height of the tree
  		 AVLTree[] arrRight = new AVLTree[height];
  		 AVLTree[] arrLeft = new AVLTree[height];
  		 IAVLNode[] onRight = new AVLNode[height];
@@ -638,16 +1292,27 @@ public class AVLTree {
  			 }
  			 node = node.getParent();
  		 }
+ 		 int cost = 0;
  		 for(int k=0;k<j;k++) {
- 			 IAVLNode left=new AVLNode(onLeft[k].getKey(),onLeft[k].getValue());
- 			 T1.join(left, arrLeft[k]);
+ 			 AVLNode left=new AVLNode(onLeft[k].getKey(),onLeft[k].getValue());
+ 			 left.dead = isDead(onLeft[k]);
+ 			 cost += T1.joinTrees(left, arrLeft[k]);
  		 }
  		 for(int k=0;k<i;k++) {
- 			 IAVLNode right=new AVLNode(onRight[k].getKey(),onRight[k].getValue());
- 			 T2.join(right, arrRight[k]);
+ 			 AVLNode right=new AVLNode(onRight[k].getKey(),onRight[k].getValue());
+ 			 right.dead = isDead(onRight[k]);
+ 			 cost += T2.joinTrees(right, arrRight[k]);
  		 }
  		 T1.updateMinMax();
  		 T2.updateMinMax();
+ 		 for(AVLTree piece : new AVLTree[] {T1, T2}) { //both pieces go on with the counters of this tree and this split
+ 			 piece.splits = splits + 1;
+ 			 piece.splitJoinCost = splitJoinCost + cost;
+ 			 piece.lastSplitJoinCost = cost;
+ 			 piece.rebuilds = rebuilds;
+ 			 piece.checkDead();
+ 			 piece.afterMutation();
+ 		 }
  		 AVLTree[] arr = {T1,T2};
  		 return arr;
  	 }
@@ -662,15 +1327,42 @@ public class AVLTree {
    * as stated, the complexity of join is (|tree.rank - t.rank| + 1), because this is the longest number of entries
    * until finding the right place to connect both trees
    * after connecting them, starting from x, the function uses rebalanceInsert() to rebalance the tree
+   * lazily deleted nodes of both trees stay in the joined tree and are counted in it,
+   * if they are over the limit of this tree (any at all when lazy delete is off) an incremental compaction starts
    * ==> O(log n - log m)+O(log (n+m)) ===? O(logn(n+m))
    */   
  	 public int join(IAVLNode x, AVLTree t){
- 		 if(t.empty()) {
- 			 this.insert(x.getKey(), x.getValue());
+ 		 int ret = joinTrees(x, t);
+ 		 //the monitor counters of t come along, the larger ones are kept since the pieces of a split share the history before it
+ 		 if(t.splits > splits) {
+ 			 splits = t.splits;
+ 			 splitJoinCost = t.splitJoinCost;
+ 			 lastSplitJoinCost = t.lastSplitJoinCost;
+ 		 }
+ 		 rebuilds = Math.max(rebuilds, t.rebuilds);
+ 		 afterMutation();
+ 		 return ret;
+ 	 }
+ 	 //the join itself, without the balance monitor counters. a dead x (from split) is dropped when one side is empty
+ 	 private int joinTrees(IAVLNode x, AVLTree t){
+ 		 int ret = joinLinks(x, t);
+ 		 countDead();
+ 		 updateMinMax();
+ 		 checkDead();
+ 		 return ret;
+ 	 }
+ 	 //links x and the nodes of t into this tree, the counts of dead nodes and min/max are fixed by joinTrees
+ 	 private int joinLinks(IAVLNode x, AVLTree t){
+ 		 if(t.empty()) {
+ 			 if(!isDead(x)) {
+ 				 this.insert(x.getKey(), x.getValue());
+ 			 }
  			 return(getRoot().getHeight()+1);
  		 }
  		 else if(empty()) {
- 			 t.insert(x.getKey(), x.getValue());
+ 			 if(!isDead(x)) {
+ 				 t.insert(x.getKey(), x.getValue());
+ 			 }
  			 this.root = t.getRoot();
  			 return(t.getRoot().getHeight()+1);
  		 }
@@ -698,7 +1390,6 @@ public class AVLTree {
  			 this.root = x;
  			 root.setParent(null);
  			 root.updateHeightSize();
- 			 updateMinMax();
  			return retVal;
  		 }
  		 int ret = Math.abs(root.getHeight()- t.getRoot().getHeight())+1;
@@ -735,7 +1426,6 @@ public class AVLTree {
  			temp.setParent(x);
  		}
  		rebalanceInsert(x);
- 		updateMinMax();
  		return ret; 
  	 }
  	/**
@@ -758,8 +1448,311 @@ public class AVLTree {
  		   temp=temp.getRight();
  		   }
  	    max = temp;   
+ 	    if(deadCount > 0) { //the ends of the tree may be lazily deleted
+ 	    	min = isDead(min) ? liveSuccessor(min) : min;
+ 	    	max = isDead(max) ? livePredecessor(max) : max;
+ 	    }
+ 	 }
+ 	/**
+ 	 * private int evict()
+ 	 * 
+ 	 * deletes the node chosen by the eviction policy of a bounded tree and calls the eviction listener
+ 	 * the victim is already known (min, max or the tail of the access list) so it is deleted with deleteNode without searching
+ 	 * returns the number of rebalancing operations of the delete
+ 	 * O(log n)
+ 	 */
+ 	 private int evict() {
+ 		 IAVLNode victim;
+ 		 if(policy == EvictionPolicy.MIN) {
+ 			 victim = min;
+ 		 }
+ 		 else if(policy == EvictionPolicy.MAX) {
+ 			 victim = max;
+ 		 }
+ 		 else {
+ 			 victim = lruTail;
+ 		 }
+ 		 int key = victim.getKey();
+ 		 String info = victim.getValue();
+ 		 int cnt = deleteNode(victim);
+ 		 evictions++;
+ 		 if(evictionHook != null) {
+ 			 evictionHook.onEvict(key, info);
+ 		 }
+ 		 if(evictionListener != null) {
+ 			 evictionListener.onEvict(key, info);
+ 		 }
+ 		 return cnt;
+ 	 }
+ 	 //puts node at the head of the LRU access list, unlinking it first if it is already in the list, O(1)
+ 	 private void lruMoveToHead(AVLNode node) {
+ 		 if(lruHead == node) {
+ 			 return;
+ 		 }
+ 		 lruUnlink(node);
+ 		 node.lruNext = lruHead;
+ 		 if(lruHead != null) {
+ 			 lruHead.lruPrev = node;
+ 		 }
+ 		 lruHead = node;
+ 		 if(lruTail == null) {
+ 			 lruTail = node;
+ 		 }
+ 	 }
+ 	 //removes node from the LRU access list if it is in it, O(1)
+ 	 private void lruUnlink(AVLNode node) {
+ 		 if(node.lruPrev != null) {
+ 			 node.lruPrev.lruNext = node.lruNext;
+ 		 }
+ 		 else if(lruHead == node) {
+ 			 lruHead = node.lruNext;
+ 		 }
+ 		 else {
+ 			 return; //not in the list
+ 		 }
+ 		 if(node.lruNext != null) {
+ 			 node.lruNext.lruPrev = node.lruPrev;
+ 		 }
+ 		 else {
+ 			 lruTail = node.lruPrev;
+ 		 }
+ 		 node.lruPrev = node.lruNext = null;
+ 	 }
+ 	/**
+ 	 * public void setEvictionListener(EvictionListener listener)
+ 	 * 
+ 	 * sets the hook which is called with the key and info of every evicted node, null removes it
+ 	 * O(1)
+ 	 */
+ 	 public void setEvictionListener(EvictionListener listener) {
+ 		 this.evictionListener = listener;
+ 	 }
+ 	 //returns the number of searches which found their key
+ 	 public long getHits() {
+ 		 return hits;
+ 	 }
+ 	 //returns the number of searches which did not find their key
+ 	 public long getMisses() {
+ 		 return misses;
+ 	 }
+ 	 //returns the number of nodes evicted by the bounded mode
+ 	 public long getEvictions() {
+ 		 return evictions;
+ 	 }
+ 	/**
+ 	 * public void writeTo(OutputStream out)
+ 	 *
+ 	 * writes the tree to out in a compact binary form:
+ 	 * the number of nodes, then the nodes in order, each one as its key and its info.
+ 	 * the first key is written as a zigzag varint, every other key as the varint of its difference from the previous key,
+ 	 * the info is written as a varint of its UTF-8 length + 1 (0 for null) followed by the bytes.
+ 	 * it walks from min with findSuccessor, so no array of the nodes is built. out is flushed but not closed
+ 	 * ==> O(n)
+ 	 */
+ 	 public void writeTo(OutputStream out) throws IOException {
+ 		 BufferedOutputStream buf = new BufferedOutputStream(out);
+ 		 writeVarLong(buf, size());
+ 		 IAVLNode temp = min;
+ 		 long prev = 0;
+ 		 boolean first = true;
+ 		 while(!empty() && temp!=null && temp.isRealNode()) {
+ 			 if(first) {
+ 				 writeVarLong(buf, ((long)temp.getKey() << 1) ^ (temp.getKey() >> 31));
+ 				 first = false;
+ 			 }
+ 			 else {
+ 				 writeVarLong(buf, temp.getKey() - prev);
+ 			 }
+ 			 prev = temp.getKey();
+ 			 if(temp.getValue()==null) {
+ 				 writeVarLong(buf, 0);
+ 			 }
+ 			 else {
+ 				 byte[] bytes = temp.getValue().getBytes(StandardCharsets.UTF_8);
+ 				 writeVarLong(buf, bytes.length + 1);
+ 				 buf.write(bytes);
+ 			 }
+ 			 temp = liveSuccessor(temp);
+ 		 }
+ 		 buf.flush();
+ 	 }
+ 	/**
+ 	 * public void writeTo(WritableByteChannel ch)
+ 	 *
+ 	 * same as writeTo(OutputStream) over a channel
+ 	 * O(n)
+ 	 */
+ 	 public void writeTo(WritableByteChannel ch) throws IOException {
+ 		 writeTo(Channels.newOutputStream(ch));
+ 	 }
+ 	/**
+ 	 * public static AVLTree readFrom(InputStream in)
+ 	 *
+ 	 * reads a tree written by writeTo.
+ 	 * the nodes come in order, so the tree is built in one pass by building the left half, taking the middle node
+ 	 * and building the right half (buildBalanced), heights, sizes, parents, min and max are set on the way,
+ 	 * with no rotations and no intermediate array.
+ 	 * it reads exactly the bytes writeTo wrote, so more data can follow on the same stream,
+ 	 * in should be buffered since it is read a byte at a time
+ 	 * ==> O(n)
+ 	 */
+ 	 public static AVLTree readFrom(InputStream in) throws IOException {
+ 		 AVLTree tree = new AVLTree();
+ 		 long n = readVarLong(in);
+ 		 if(n < 0 || n > Integer.MAX_VALUE) {
+ 			 throw new IOException("corrupt tree stream, bad size " + n);
+ 		 }
+ 		 StreamSource src = tree.new StreamSource(in);
+ 		 tree.root = tree.buildBalanced((int)n, src);
+ 		 if(tree.root!=null) {
+ 			 tree.root.setParent(null);
+ 		 }
+ 		 tree.min = src.first;
+ 		 tree.max = src.last;
+ 		 return tree;
+ 	 }
+ 	/**
+ 	 * public static AVLTree readFrom(ReadableByteChannel ch)
+ 	 *
+ 	 * same as readFrom(InputStream) over a channel, the channel is read ahead through a buffer
+ 	 * so it should not hold anything after the tree
+ 	 * O(n)
+ 	 */
+ 	 public static AVLTree readFrom(ReadableByteChannel ch) throws IOException {
+ 		 return readFrom(new BufferedInputStream(Channels.newInputStream(ch)));
+ 	 }
+ 	/**
+ 	 * private IAVLNode buildBalanced(int n, NodeSource src)
+ 	 *
+ 	 * builds a balanced subtree from the next n nodes of src (which come in key order) and returns its root,
+ 	 * or null if n is 0. the left half is built first so the nodes are consumed in order,
+ 	 * setLeft/setRight update the height and size of each node on the way up
+ 	 * ==> O(n)
+ 	 */
+ 	 private IAVLNode buildBalanced(int n, NodeSource src) throws IOException {
+ 		 if(n==0) {
+ 			 return null;
+ 		 }
+ 		 int leftSize = (n-1)/2;
+ 		 IAVLNode left = buildBalanced(leftSize, src);
+ 		 IAVLNode node = src.next();
+ 		 IAVLNode right = buildBalanced(n-1-leftSize, src);
+ 		 node.setLeft(left);
+ 		 node.setRight(right);
+ 		 if(left!=null) {
+ 			 left.setParent(node);
+ 		 }
+ 		 if(right!=null) {
+ 			 right.setParent(node);
+ 		 }
+ 		 return node;
+ 	 }
+ 	/**
+ 	 * private IAVLNode buildBalanced(IAVLNode[] nodes, int from, int to)
+ 	 *
+ 	 * the same as buildBalanced(int n, NodeSource src) for nodes[from..to) which are already in an array,
+ 	 * the nodes are linked again from scratch
+ 	 * ==> O(n)
+ 	 */
+ 	 private IAVLNode buildBalanced(IAVLNode[] nodes, int from, int to) {
+ 		 if(from >= to) {
+ 			 return null;
+ 		 }
+ 		 int mid = (from+to-1) >>> 1;
+ 		 IAVLNode left = buildBalanced(nodes, from, mid);
+ 		 IAVLNode right = buildBalanced(nodes, mid+1, to);
+ 		 IAVLNode node = nodes[mid];
+ 		 node.setLeft(left);
+ 		 node.setRight(right);
+ 		 if(left!=null) {
+ 			 left.setParent(node);
+ 		 }
+ 		 if(right!=null) {
+ 			 right.setParent(node);
+ 		 }
+ 		 return node;
+ 	 }
+ 	 //gives buildBalanced the next node in key order
+ 	 private interface NodeSource {
+ 		 IAVLNode next() throws IOException;
+ 	 }
+ 	 //a NodeSource that decodes the nodes written by writeTo, and remembers the first and last one for min/max
+ 	 private class StreamSource implements NodeSource {
+ 		 private final DataInputStream in;
+ 		 private IAVLNode first, last;
+ 		 StreamSource(InputStream in) {
+ 			 this.in = new DataInputStream(in);
+ 		 }
+ 		 //reads the next node, anything writeTo can not have written (keys out of order or out of int range,
+ 		 //a bad info length) is an IOException
+ 		 public IAVLNode next() throws IOException {
+ 			 int key;
+ 			 if(last==null) {
+ 				 long zz = readVarLong(in);
+ 				 if((zz >>> 32) != 0) {
+ 					 throw new IOException("corrupt tree stream, first key out of range");
+ 				 }
+ 				 key = (int)((zz >>> 1) ^ -(zz & 1));
+ 			 }
+ 			 else {
+ 				 long delta = readVarLong(in);
+ 				 if(delta < 1 || delta > (long)Integer.MAX_VALUE - last.getKey()) {
+ 					 throw new IOException("corrupt tree stream, key delta " + Long.toUnsignedString(delta) + " after " + last.getKey());
+ 				 }
+ 				 key = (int)(last.getKey() + delta);
+ 			 }
+ 			 long len = readVarLong(in);
+ 			 if(len < 0 || len - 1 > Integer.MAX_VALUE - 8) {
+ 				 throw new IOException("corrupt tree stream, info length " + Long.toUnsignedString(len));
+ 			 }
+ 			 String info = null;
+ 			 if(len > 0) {
+ 				 byte[] bytes = new byte[(int)(len-1)];
+ 				 in.readFully(bytes);
+ 				 info = new String(bytes, StandardCharsets.UTF_8);
+ 			 }
+ 			 IAVLNode node = new AVLNode(key, info);
+ 			 if(first==null) {
+ 				 first = node;
+ 			 }
+ 			 last = node;
+ 			 return node;
+ 		 }
+ 	 }
+ 	 //writes v as an unsigned LEB128 varint, 7 bits per byte
+ 	 private static void writeVarLong(OutputStream out, long v) throws IOException {
+ 		 while((v & ~0x7FL) != 0) {
+ 			 out.write((int)((v & 0x7F) | 0x80));
+ 			 v >>>= 7;
+ 		 }
+ 		 out.write((int)v);
+ 	 }
+ 	 //reads a varint written by writeVarLong
+ 	 private static long readVarLong(InputStream in) throws IOException {
+ 		 long v = 0;
+ 		 for(int shift=0;shift<64;shift+=7) {
+ 			 int b = in.read();
+ 			 if(b < 0) {
+ 				 throw new EOFException("unexpected end of tree stream");
+ 			 }
+ 			 v |= (long)(b & 0x7F) << shift;
+ 			 if((b & 0x80) == 0) {
+ 				 return v;
+ 			 }
+ 		 }
+ 		 throw new IOException("corrupt tree stream, varint too long");
  	 }
 
+	//which node a bounded tree evicts when it goes over capacity
+	public enum EvictionPolicy {
+		MIN, MAX, LRU
+	}
+
+	//a hook called after a bounded tree evicted a node
+	public interface EvictionListener {
+		public void onEvict(int key, String info);
+	}
+
 	/**
 	   * public interface IAVLNode
 	   * ! Do not delete or modify this - otherwise all tests will fail !
@@ -797,6 +1790,9 @@ public class AVLTree {
 	  	int height;
 	  	int size;
 	  	IAVLNode left, right, parent;
+	  	AVLNode lruPrev, lruNext; //the LRU access list of a bounded tree
+	  	boolean dead; //lazily deleted
+	  	int live; //the number of nodes in the subtree which are not dead
 	  	public AVLNode() {
 
 	  	}
@@ -808,6 +1804,7 @@ public class AVLTree {
 	  		parent=null;
 			this.height = 0;
 			this.size = 1;
+			this.live = 1;
 	  	}
 		public int getKey()
 		{
@@ -879,14 +1876,19 @@ public class AVLTree {
 			this.size=size;
 		}
 		
+		public int getLiveSize() {
+			return live;
+		}
+		
 		public int BFCalc() {
 			int bf=left.getHeight()-right.getHeight();
 			return bf;
 		}
-		//updates the height and size at the same time
+		//updates the height, size and live count at the same time
 		public void updateHeightSize() {
 			this.height = Math.max(left.getHeight(), right.getHeight())+1;
 			this.size = left.getSize() + right.getSize() +1;
+			this.live = ((AVLNode)left).getLiveSize() + ((AVLNode)right).getLiveSize() + (dead ? 0 : 1);
 		}
  	}
  
@@ -899,6 +1901,10 @@ public class AVLTree {
 	 public int getSize() {
 		  return 0;
 	  }
+	 @Override
+	 public int getLiveSize() {
+		  return 0;
+	  }
 	 @Override
 	  public int getHeight() {
 		  return -1;
@@ -913,6 +1919,2446 @@ public class AVLTree {
 	  }
  }
 
+
+ /**
+  * public static class BatchWriter
+  *
+  * an optional front end for a tree which gets its writes from many threads.
+  * callers submit inserts and deletes and get back a CompletableFuture with the same value
+  * insert/delete would return (number of rebalancing operations, or -1).
+  * the writes are flat combined: a caller queues its op and, if no other caller is applying writes right now,
+  * becomes the combiner and applies everything queued, its own op and those of the threads that queued behind it,
+  * in batches. an op is never handed to another thread to wait for, whoever holds the combiner lock applies it.
+  * each batch coalesces the operations on the same key and applies them in key order.
+  * next to the tree it keeps a persistent Snapshot which every applied write path-copies in O(log n),
+  * after each batch the new version is published with one volatile write and readers (from any thread,
+  * virtual threads included) search it without locking.
+  * the futures of a batch complete after its snapshot is published, so a caller sees its own write in search
+  *
+  * the tree given to the constructor must not be used directly while the writer is open
+  */
+ public static class BatchWriter {
+	 private static final int INSERT = 0, DELETE = 1;
+	 private final AVLTree tree;
+	 private final int maxBatch;
+	 private final BlockingQueue<WriteOp> queue = new LinkedBlockingQueue<>();
+	 private final ReentrantLock combiner = new ReentrantLock(); //held by the thread applying writes
+	 private volatile Snapshot snapshot;
+	 private Snapshot next; //the version being built, only the combiner uses it
+	 private boolean closed; //guarded by this, together with the enqueue of submit
+
+	 /**
+	  * public BatchWriter(AVLTree tree, int maxBatch)
+	  *
+	  * wraps the given tree, each batch has at most maxBatch operations
+	  * publishes the first snapshot of the tree, O(n)
+	  */
+	 public BatchWriter(AVLTree tree, int maxBatch) {
+		 this.tree = tree;
+		 this.maxBatch = Math.max(1, maxBatch);
+		 this.snapshot = new Snapshot(tree);
+		 tree.evictionHook = (k, i) -> next = next.without(k); //a bounded tree removes nodes by itself
+	 }
+
+	 /**
+	  * public CompletableFuture<Integer> insert(int k, String i)
+	  *
+	  * queues an insert of key k with info i and applies the queue if no other thread is applying it
+	  * the future completes with the return value of AVLTree.insert once the batch is applied,
+	  * when this thread was the combiner it is already complete on return
+	  * O(log n) amortized per queued op
+	  */
+	 public CompletableFuture<Integer> insert(int k, String i) {
+		 return submit(new WriteOp(INSERT, k, i));
+	 }
+
+	 /**
+	  * public CompletableFuture<Integer> delete(int k)
+	  *
+	  * queues a delete of key k and applies the queue if no other thread is applying it
+	  * the future completes with the return value of AVLTree.delete once the batch is applied
+	  * O(log n) amortized per queued op
+	  */
+	 public CompletableFuture<Integer> delete(int k) {
+		 return submit(new WriteOp(DELETE, k, null));
+	 }
+
+	 /**
+	  * public String search(int k)
+	  *
+	  * returns the info of key k in the last published snapshot, or null
+	  * it never blocks and can be called from any thread
+	  * O(log n)
+	  */
+	 public String search(int k) {
+		 return snapshot.search(k);
+	 }
+
+	 /**
+	  * public Snapshot snapshot()
+	  *
+	  * returns the last published version of the tree
+	  * O(1)
+	  */
+	 public Snapshot snapshot() {
+		 return snapshot;
+	 }
+
+	 /**
+	  * public void close()
+	  *
+	  * stops accepting writes, applies everything already queued and waits for a running combiner to finish
+	  * afterwards the tree can be used directly again
+	  */
+	 public void close() throws InterruptedException {
+		 synchronized(this) {
+			 closed = true;
+		 }
+		 combiner.lockInterruptibly();
+		 try {
+			 while(!queue.isEmpty()) {
+				 applyBatch();
+			 }
+			 tree.evictionHook = null;
+		 }
+		 finally {
+			 combiner.unlock();
+		 }
+	 }
+
+	 //the check of closed and the enqueue are under the same lock as close, so nothing is queued after close drains
+	 private CompletableFuture<Integer> submit(WriteOp op) {
+		 synchronized(this) {
+			 if(closed) {
+				 op.result.completeExceptionally(new IllegalStateException("writer is closed"));
+				 return op.result;
+			 }
+			 queue.add(op);
+		 }
+		 combine();
+		 return op.result;
+	 }
+
+	 /**
+	  * private void combine()
+	  *
+	  * applies the queue on the calling thread unless another thread holds the combiner lock.
+	  * a thread which fails tryLock leaves its op to the holder, so the holder looks at the queue again after
+	  * unlocking: an op queued while it was releasing the lock is then picked up by it or by the thread that queued it
+	  */
+	 private void combine() {
+		 while(!queue.isEmpty() && combiner.tryLock()) {
+			 try {
+				 while(!queue.isEmpty()) {
+					 applyBatch();
+				 }
+			 }
+			 finally {
+				 combiner.unlock();
+			 }
+		 }
+	 }
+
+	 /**
+	  * private void applyBatch()
+	  *
+	  * takes up to maxBatch queued ops, applies them to the tree and to the next snapshot version,
+	  * publishes that version and then completes the futures of the batch.
+	  * an Error on the way leaves the tree in an unknown state, so the writer is closed
+	  * and every write it did not finish fails before the Error is thrown on, no caller waits forever
+	  * the combiner lock must be held
+	  */
+	 private void applyBatch() {
+		 List<WriteOp> batch = new ArrayList<>(maxBatch);
+		 queue.drainTo(batch, maxBatch);
+		 try {
+			 batch.sort(Comparator.comparingInt(op -> op.key)); //stable, so ops on the same key keep their order
+			 next = snapshot;
+			 int from = 0;
+			 while(from < batch.size()) {
+				 int to = from+1;
+				 while(to < batch.size() && batch.get(to).key == batch.get(from).key) {
+					 to++;
+				 }
+				 applyRun(batch, from, to);
+				 from = to;
+			 }
+			 if(next.size() != tree.size()) { //only after a write failed half way, copy the tree again
+				 next = new Snapshot(tree);
+			 }
+			 snapshot = next;
+		 }
+		 catch(Error e) {
+			 synchronized(this) {
+				 closed = true;
+			 }
+			 IllegalStateException stopped = new IllegalStateException("writer stopped", e);
+			 for(WriteOp op : batch) {
+				 op.result.completeExceptionally(stopped);
+			 }
+			 for(WriteOp op = queue.poll(); op != null; op = queue.poll()) {
+				 op.result.completeExceptionally(stopped);
+			 }
+			 throw e;
+		 }
+		 for(WriteOp op : batch) {
+			 if(op.failure != null) {
+				 op.result.completeExceptionally(op.failure);
+			 }
+			 else {
+				 op.result.complete(op.value);
+			 }
+		 }
+	 }
+
+	 /**
+	  * private void applyRun(List<WriteOp> batch, int from, int to)
+	  *
+	  * applies the operations batch[from..to) which all have the same key.
+	  * the ops are replayed against the presence of the key without touching the tree,
+	  * an op which fails (insert of an existing key, delete of a missing one) gets -1,
+	  * an insert which is deleted again inside the batch cancels out with that delete, both get 0.
+	  * what is left is at most one delete followed by one insert, which are applied to the tree
+	  * the results are stored in the ops, drain completes the futures after publishing the snapshot
+	  * one search + at most one delete and one insert, each also path-copied into the next snapshot ==> O(log n)
+	  */
+	 private void applyRun(List<WriteOp> batch, int from, int to) {
+		 int key = batch.get(from).key;
+		 boolean present = tree.searchNode(key) != null;
+		 WriteOp pendingDelete = null, pendingInsert = null;
+		 for(int i=from;i<to;i++) {
+			 WriteOp op = batch.get(i);
+			 if(op.type == INSERT) {
+				 if(present) {
+					 op.value = -1;
+				 }
+				 else {
+					 pendingInsert = op;
+					 present = true;
+				 }
+			 }
+			 else if(!present) {
+				 op.value = -1;
+			 }
+			 else if(pendingInsert != null) {
+				 pendingInsert.value = 0;
+				 op.value = 0;
+				 pendingInsert = null;
+				 present = false;
+			 }
+			 else {
+				 pendingDelete = op;
+				 present = false;
+			 }
+		 }
+		 try {
+			 if(pendingDelete != null) {
+				 pendingDelete.value = tree.delete(key);
+				 next = next.without(key);
+			 }
+			 if(pendingInsert != null) { //into next first, an eviction of the new key takes it out again through the hook
+				 next = next.with(key, pendingInsert.info);
+				 pendingInsert.value = tree.insert(key, pendingInsert.info);
+			 }
+		 }
+		 catch(RuntimeException e) {
+			 if(pendingDelete != null) {
+				 pendingDelete.failure = e;
+			 }
+			 if(pendingInsert != null) {
+				 pendingInsert.failure = e;
+			 }
+		 }
+	 }
+
+	 //a queued write, type is INSERT or DELETE
+	 private static class WriteOp {
+		 final int type, key;
+		 final String info;
+		 final CompletableFuture<Integer> result = new CompletableFuture<>();
+		 int value; //the result, set by applyRun
+		 RuntimeException failure;
+		 WriteOp(int type, int key, String info) {
+			 this.type = type;
+			 this.key = key;
+			 this.info = info;
+		 }
+	 }
+ }
+
+ /**
+  * public static class Snapshot
+  *
+  * an immutable version of the keys and info of a tree, safe to read from any number of threads.
+  * it is a persistent AVL tree: with and without return a new version and copy only the path
+  * from the root to the changed key (O(log n) new nodes), the rest of the nodes are shared with the old version
+  */
+ public static class Snapshot {
+	 private final SnapshotNode root;
+
+	 //copies the live nodes of tree, O(n)
+	 Snapshot(AVLTree tree) {
+		 int n = tree.empty() ? 0 : tree.size();
+		 int[] keys = new int[n];
+		 String[] info = new String[n];
+		 if(n > 0) {
+			 IAVLNode[] nodes = tree.nodeToArray();
+			 for(int i=0;i<n;i++) {
+				 keys[i] = nodes[i].getKey();
+				 info[i] = nodes[i].getValue();
+			 }
+		 }
+		 root = build(keys, info, 0, n);
+	 }
+
+	 private Snapshot(SnapshotNode root) {
+		 this.root = root;
+	 }
+
+	 /**
+	  * public String search(int k)
+	  *
+	  * returns the info of key k, or null, O(log n)
+	  */
+	 public String search(int k) {
+		 SnapshotNode node = root;
+		 while(node != null) {
+			 if(k == node.key) {
+				 return node.info;
+			 }
+			 node = k < node.key ? node.left : node.right;
+		 }
+		 return null;
+	 }
+
+	 public int size() {
+		 return root == null ? 0 : root.size;
+	 }
+
+	 /**
+	  * public Snapshot with(int k, String i)
+	  *
+	  * returns a new version where key k has info i (inserted, or replaced if it is there), this one does not change
+	  * O(log n)
+	  */
+	 public Snapshot with(int k, String i) {
+		 return new Snapshot(put(root, k, i));
+	 }
+
+	 /**
+	  * public Snapshot without(int k)
+	  *
+	  * returns a new version without key k, this one does not change
+	  * O(log n)
+	  */
+	 public Snapshot without(int k) {
+		 return contains(k) ? new Snapshot(remove(root, k)) : this;
+	 }
+
+	 public int[] keysToArray() {
+		 int[] keys = new int[size()];
+		 fill(root, keys, null, 0);
+		 return keys;
+	 }
+
+	 public String[] infoToArray() {
+		 String[] info = new String[size()];
+		 fill(root, null, info, 0);
+		 return info;
+	 }
+
+	 private boolean contains(int k) {
+		 SnapshotNode node = root;
+		 while(node != null && node.key != k) {
+			 node = k < node.key ? node.left : node.right;
+		 }
+		 return node != null;
+	 }
+
+	 //writes the subtree of node in order from index i, returns the next index
+	 private static int fill(SnapshotNode node, int[] keys, String[] info, int i) {
+		 if(node == null) {
+			 return i;
+		 }
+		 i = fill(node.left, keys, info, i);
+		 if(keys != null) {
+			 keys[i] = node.key;
+		 }
+		 if(info != null) {
+			 info[i] = node.info;
+		 }
+		 return fill(node.right, keys, info, i+1);
+	 }
+
+	 private static SnapshotNode build(int[] keys, String[] info, int from, int to) {
+		 if(from >= to) {
+			 return null;
+		 }
+		 int mid = (from+to-1) >>> 1;
+		 return new SnapshotNode(keys[mid], info[mid], build(keys, info, from, mid), build(keys, info, mid+1, to));
+	 }
+
+	 private static SnapshotNode put(SnapshotNode node, int k, String i) {
+		 if(node == null) {
+			 return new SnapshotNode(k, i, null, null);
+		 }
+		 if(k < node.key) {
+			 return balance(node.key, node.info, put(node.left, k, i), node.right);
+		 }
+		 if(k > node.key) {
+			 return balance(node.key, node.info, node.left, put(node.right, k, i));
+		 }
+		 return new SnapshotNode(k, i, node.left, node.right);
+	 }
+
+	 private static SnapshotNode remove(SnapshotNode node, int k) {
+		 if(k < node.key) {
+			 return balance(node.key, node.info, remove(node.left, k), node.right);
+		 }
+		 if(k > node.key) {
+			 return balance(node.key, node.info, node.left, remove(node.right, k));
+		 }
+		 if(node.left == null) {
+			 return node.right;
+		 }
+		 if(node.right == null) {
+			 return node.left;
+		 }
+		 SnapshotNode successor = node.right;
+		 while(successor.left != null) {
+			 successor = successor.left;
+		 }
+		 return balance(successor.key, successor.info, node.left, removeMin(node.right));
+	 }
+
+	 private static SnapshotNode removeMin(SnapshotNode node) {
+		 if(node.left == null) {
+			 return node.right;
+		 }
+		 return balance(node.key, node.info, removeMin(node.left), node.right);
+	 }
+
+	 /**
+	  * private static SnapshotNode balance(int key, String info, SnapshotNode l, SnapshotNode r)
+	  *
+	  * makes a new node with children l and r whose heights differ by at most 2,
+	  * with a single or double rotation if they differ by 2 (the rotated nodes are new copies)
+	  * O(1)
+	  */
+	 private static SnapshotNode balance(int key, String info, SnapshotNode l, SnapshotNode r) {
+		 if(height(l) > height(r)+1) {
+			 if(height(l.left) >= height(l.right)) {
+				 return new SnapshotNode(l.key, l.info, l.left, new SnapshotNode(key, info, l.right, r));
+			 }
+			 SnapshotNode lr = l.right;
+			 return new SnapshotNode(lr.key, lr.info, new SnapshotNode(l.key, l.info, l.left, lr.left), new SnapshotNode(key, info, lr.right, r));
+		 }
+		 if(height(r) > height(l)+1) {
+			 if(height(r.right) >= height(r.left)) {
+				 return new SnapshotNode(r.key, r.info, new SnapshotNode(key, info, l, r.left), r.right);
+			 }
+			 SnapshotNode rl = r.left;
+			 return new SnapshotNode(rl.key, rl.info, new SnapshotNode(key, info, l, rl.left), new SnapshotNode(r.key, r.info, rl.right, r.right));
+		 }
+		 return new SnapshotNode(key, info, l, r);
+	 }
+
+	 private static int height(SnapshotNode node) {
+		 return node == null ? -1 : node.height;
+	 }
+
+	 //a node of a snapshot, never changed after it is made
+	 private static final class SnapshotNode {
+		 final int key, height, size;
+		 final String info;
+		 final SnapshotNode left, right;
+		 SnapshotNode(int key, String info, SnapshotNode left, SnapshotNode right) {
+			 this.key = key;
+			 this.info = info;
+			 this.left = left;
+			 this.right = right;
+			 this.height = Math.max(height(left), height(right))+1;
+			 this.size = (left == null ? 0 : left.size)+(right == null ? 0 : right.size)+1;
+		 }
+	 }
+ }
+
+
+ /**
+  * public static class CompactAVLTree
+  *
+  * a compact variant of the tree, for when the memory of every node matters more than the extra features of AVLTree.
+  * its nodes have no parent pointer, no size and no virtual children (null is used instead),
+  * and they keep a byte balance factor (height of left - height of right) instead of the height.
+  * insert and delete remember the path from the root in an array (a path stack) and rebalance
+  * on the way back up that path, so nothing depends on parent pointers.
+  * the return values are the same as in AVLTree (rotations, -1 if the key exists / does not exist)
+  */
+ public static class CompactAVLTree {
+	 private static final int MAX_DEPTH = 64; //an AVL tree with 2^31 nodes is less than 1.45*31 high
+	 private CompactNode root;
+	 private int size;
+	 private final CompactNode[] path = new CompactNode[MAX_DEPTH]; //the path of the current insert/delete
+	 private final boolean[] wentLeft = new boolean[MAX_DEPTH]; //wentLeft[d] is true if the path went left at path[d]
+
+	 public boolean empty() {
+		 return root == null;
+	 }
+
+	 public int size() {
+		 return size;
+	 }
+
+	 /**
+	  * public String search(int k)
+	  *
+	  * returns the info of key k, or null if it is not in the tree
+	  * O(log n)
+	  */
+	 public String search(int k) {
+		 CompactNode temp = root;
+		 while(temp != null) {
+			 if(temp.key > k) {
+				 temp = temp.left;
+			 }
+			 else if(temp.key < k) {
+				 temp = temp.right;
+			 }
+			 else {
+				 return temp.info;
+			 }
+		 }
+		 return null;
+	 }
+
+	 /**
+	  * public int insert(int k, String i)
+	  *
+	  * walks down to the place of k pushing the path, adds the node and goes back up the path
+	  * updating the balance factors, until a node becomes balanced (its height did not change)
+	  * or a node becomes unbalanced, which one single or double rotation fixes.
+	  * returns the number of rotations (double rotation is 2), or -1 if k is already in the tree
+	  * O(log n)
+	  */
+	 public int insert(int k, String i) {
+		 int depth = 0;
+		 CompactNode temp = root;
+		 while(temp != null) {
+			 if(temp.key == k) {
+				 return -1;
+			 }
+			 path[depth] = temp;
+			 wentLeft[depth] = k < temp.key;
+			 temp = wentLeft[depth] ? temp.left : temp.right;
+			 depth++;
+		 }
+		 CompactNode x = new CompactNode(k, i);
+		 size++;
+		 if(depth == 0) {
+			 root = x;
+			 return 0;
+		 }
+		 replace(depth-1, x);
+		 for(int d=depth-1;d>=0;d--) {
+			 CompactNode p = path[d];
+			 p.balance += wentLeft[d] ? 1 : -1;
+			 if(p.balance == 0) { //the height of p did not change
+				 return 0;
+			 }
+			 if(p.balance == 2 || p.balance == -2) {
+				 int cnt = rotations(p);
+				 replace(d-1, rebalance(p));
+				 return cnt;
+			 }
+		 }
+		 return 0;
+	 }
+
+	 /**
+	  * public int delete(int k)
+	  *
+	  * walks down to k pushing the path. a node with two children takes the key and info of its successor,
+	  * and the successor (which has no left child) is the node which is removed.
+	  * then it goes back up the path updating the balance factors and rotating where needed,
+	  * until the height of a subtree stops changing.
+	  * returns the number of rotations (double rotation is 2), or -1 if k is not in the tree
+	  * O(log n)
+	  */
+	 public int delete(int k) {
+		 int depth = 0;
+		 CompactNode temp = root;
+		 while(temp != null && temp.key != k) {
+			 path[depth] = temp;
+			 wentLeft[depth] = k < temp.key;
+			 temp = wentLeft[depth] ? temp.left : temp.right;
+			 depth++;
+		 }
+		 if(temp == null) {
+			 return -1;
+		 }
+		 if(temp.left != null && temp.right != null) {
+			 CompactNode node = temp;
+			 path[depth] = node;
+			 wentLeft[depth] = false;
+			 depth++;
+			 temp = node.right;
+			 while(temp.left != null) {
+				 path[depth] = temp;
+				 wentLeft[depth] = true;
+				 depth++;
+				 temp = temp.left;
+			 }
+			 node.key = temp.key;
+			 node.info = temp.info;
+		 }
+		 size--;
+		 replace(depth-1, temp.left != null ? temp.left : temp.right);
+		 int cnt = 0;
+		 for(int d=depth-1;d>=0;d--) {
+			 CompactNode p = path[d];
+			 p.balance += wentLeft[d] ? -1 : 1;
+			 if(p.balance == 1 || p.balance == -1) { //the height of p did not change
+				 break;
+			 }
+			 if(p.balance == 2 || p.balance == -2) {
+				 cnt += rotations(p);
+				 CompactNode r = rebalance(p);
+				 replace(d-1, r);
+				 if(r.balance != 0) { //the rotated subtree kept its height
+					 break;
+				 }
+			 }
+		 }
+		 return cnt;
+	 }
+
+	 /**
+	  * public String min()
+	  *
+	  * returns the info of the smallest key, or null if the tree is empty
+	  * there is no min pointer to keep up to date, so it walks the left spine, O(log n)
+	  */
+	 public String min() {
+		 CompactNode temp = root;
+		 while(temp != null && temp.left != null) {
+			 temp = temp.left;
+		 }
+		 return temp == null ? null : temp.info;
+	 }
+
+	 /**
+	  * public String max()
+	  *
+	  * returns the info of the largest key, or null if the tree is empty
+	  * O(log n)
+	  */
+	 public String max() {
+		 CompactNode temp = root;
+		 while(temp != null && temp.right != null) {
+			 temp = temp.right;
+		 }
+		 return temp == null ? null : temp.info;
+	 }
+
+	 /**
+	  * public int[] keysToArray()
+	  *
+	  * returns the sorted keys, in order traversal with a stack instead of parents
+	  * O(n)
+	  */
+	 public int[] keysToArray() {
+		 int[] arr = new int[size];
+		 CompactNode[] stack = new CompactNode[MAX_DEPTH];
+		 int top = 0, i = 0;
+		 CompactNode temp = root;
+		 while(temp != null || top > 0) {
+			 while(temp != null) {
+				 stack[top++] = temp;
+				 temp = temp.left;
+			 }
+			 temp = stack[--top];
+			 arr[i++] = temp.key;
+			 temp = temp.right;
+		 }
+		 return arr;
+	 }
+
+	 /**
+	  * public String[] infoToArray()
+	  *
+	  * returns the info sorted by the keys, O(n)
+	  */
+	 public String[] infoToArray() {
+		 String[] arr = new String[size];
+		 CompactNode[] stack = new CompactNode[MAX_DEPTH];
+		 int top = 0, i = 0;
+		 CompactNode temp = root;
+		 while(temp != null || top > 0) {
+			 while(temp != null) {
+				 stack[top++] = temp;
+				 temp = temp.left;
+			 }
+			 temp = stack[--top];
+			 arr[i++] = temp.info;
+			 temp = temp.right;
+		 }
+		 return arr;
+	 }
+
+	 //puts node in place of the child path[d] went to, or as the root if d is -1
+	 private void replace(int d, CompactNode node) {
+		 if(d < 0) {
+			 root = node;
+		 }
+		 else if(wentLeft[d]) {
+			 path[d].left = node;
+		 }
+		 else {
+			 path[d].right = node;
+		 }
+	 }
+
+	 //the number of rotations rebalance(p) will do, 1 for a single rotation and 2 for a double one
+	 private static int rotations(CompactNode p) {
+		 if(p.balance == 2) {
+			 return p.left.balance < 0 ? 2 : 1;
+		 }
+		 return p.right.balance > 0 ? 2 : 1;
+	 }
+
+	 //fixes a node with balance factor 2 or -2 with a single or a double rotation, returns the new root of the subtree
+	 private static CompactNode rebalance(CompactNode p) {
+		 if(p.balance == 2) {
+			 if(p.left.balance < 0) {
+				 p.left = rotateLeft(p.left);
+			 }
+			 return rotateRight(p);
+		 }
+		 if(p.right.balance > 0) {
+			 p.right = rotateRight(p.right);
+		 }
+		 return rotateLeft(p);
+	 }
+
+	 //right rotation on p, the balance factors are updated from the old ones without knowing any height
+	 private static CompactNode rotateRight(CompactNode p) {
+		 CompactNode c = p.left;
+		 p.left = c.right;
+		 c.right = p;
+		 p.balance = (byte)(p.balance - 1 - Math.max(c.balance, 0));
+		 c.balance = (byte)(c.balance - 1 + Math.min(p.balance, 0));
+		 return c;
+	 }
+
+	 //left rotation on p, the mirror of rotateRight
+	 private static CompactNode rotateLeft(CompactNode p) {
+		 CompactNode c = p.right;
+		 p.right = c.left;
+		 c.left = p;
+		 p.balance = (byte)(p.balance + 1 - Math.min(c.balance, 0));
+		 c.balance = (byte)(c.balance + 1 + Math.max(p.balance, 0));
+		 return c;
+	 }
+
+	 //a node of CompactAVLTree: key, info, two children and a byte balance factor
+	 private static final class CompactNode {
+		 int key;
+		 String info;
+		 CompactNode left, right;
+		 byte balance;
+		 CompactNode(int key, String info) {
+			 this.key = key;
+			 this.info = info;
+		 }
+	 }
+ }
+
+
+ /**
+  * public static class WorkloadReplay
+  *
+  * a standalone load tool for the tree, run with: java AVLTree$WorkloadReplay [options]
+  * it replays a recorded trace (--trace file, one "insert|delete|search|split|join key [info]" per line)
+  * or a synthetic workload (--synthetic zipf|seq|cluster with --ops, --keys and --mix insert,delete,search,split percents)
+  * against one AVLTree, either closed loop (--rate 0) or at a fixed rate of --rate ops per second, from --threads threads.
+  * --preload n first inserts n random keys of the workload's key space ([0, --keys) or the key range of the trace).
+  * the tree is not thread safe, so every operation takes the tree lock, as a lock-per-op user would.
+  * in fixed rate mode the latency of an operation is measured from the time it was supposed to start,
+  * so a stall is charged to every operation which queued behind it (coordinated omission correction).
+  * the report (--out file, or standard output) is JSON: latency percentiles per operation type,
+  * rotation counts, GC collections and time, and throughput, so two runs can be diffed.
+  * a split line splits the tree at its key and joins the two halves back with that key, so the replay keeps one tree,
+  * the split and the join are recorded separately. a join line does the same.
+  * if the tree throws, the run stops, the report gets an "error" field and the exit status is 1
+  */
+ public static class WorkloadReplay {
+	 static final int INSERT = 0, DELETE = 1, SEARCH = 2, SPLIT = 3;
+	 static final String[] OP_NAMES = {"insert", "delete", "search", "split", "join"};
+	 static final int JOIN = 4; //only a histogram, a split op records its join under it
+
+	 private final int[] types, keys;
+	 private final String[] infos;
+	 private final Object lock = new Object();
+	 private AVLTree tree = new AVLTree();
+	 private long rotations, joinCost, skipped;
+	 private volatile RuntimeException failure; //the first exception thrown by the tree, it stops the run
+
+	 WorkloadReplay(int[] types, int[] keys, String[] infos) {
+		 this.types = types;
+		 this.keys = keys;
+		 this.infos = infos;
+	 }
+
+	 public static void main(String[] args) throws Exception {
+		 Map<String, String> opt = new HashMap<>();
+		 for(int i=0;i+1<args.length;i+=2) {
+			 if(!args[i].startsWith("--")) {
+				 throw new IllegalArgumentException("expected an --option, got " + args[i]);
+			 }
+			 opt.put(args[i].substring(2), args[i+1]);
+		 }
+		 long seed = Long.parseLong(opt.getOrDefault("seed", "1"));
+		 int preload = Integer.parseInt(opt.getOrDefault("preload", "0"));
+		 WorkloadReplay replay;
+		 long lowKey = 0, highKey; //the key space of the workload, the preloaded keys come from it so the ops hit them
+		 if(opt.containsKey("trace")) {
+			 replay = fromTrace(Paths.get(opt.get("trace")));
+			 lowKey = Integer.MAX_VALUE;
+			 highKey = Integer.MIN_VALUE;
+			 for(int k : replay.keys) {
+				 lowKey = Math.min(lowKey, k);
+				 highKey = Math.max(highKey, k);
+			 }
+			 if(replay.keys.length == 0) {
+				 lowKey = highKey = 0;
+			 }
+		 }
+		 else {
+			 int[] mix = new int[4];
+			 String[] parts = opt.getOrDefault("mix", "40,10,50,0").split(",");
+			 for(int i=0;i<mix.length;i++) {
+				 mix[i] = Integer.parseInt(parts[i].trim());
+			 }
+			 int keySpace = Integer.parseInt(opt.getOrDefault("keys", "100000"));
+			 replay = synthetic(opt.getOrDefault("synthetic", "zipf"),
+					 Integer.parseInt(opt.getOrDefault("ops", "1000000")), keySpace, mix, seed);
+			 highKey = keySpace - 1;
+		 }
+		 Random random = new Random(seed);
+		 for(int i=0;i<preload;i++) {
+			 replay.tree.insert((int)(lowKey + Math.floorMod(random.nextLong(), highKey - lowKey + 1)), "p");
+		 }
+		 String report = replay.run(Integer.parseInt(opt.getOrDefault("threads", "1")),
+				 Double.parseDouble(opt.getOrDefault("rate", "0")));
+		 if(opt.containsKey("out")) {
+			 Files.write(Paths.get(opt.get("out")), report.getBytes(StandardCharsets.UTF_8));
+		 }
+		 else {
+			 System.out.println(report);
+		 }
+		 if(replay.failure != null) {
+			 replay.failure.printStackTrace();
+			 System.exit(1);
+		 }
+	 }
+
+	 /**
+	  * static WorkloadReplay fromTrace(Path file)
+	  *
+	  * reads a trace file, one operation per line: the operation name, the key and an optional info for insert.
+	  * empty lines and lines starting with # are skipped
+	  */
+	 static WorkloadReplay fromTrace(Path file) throws IOException {
+		 List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		 int[] types = new int[lines.size()], keys = new int[lines.size()];
+		 String[] infos = new String[lines.size()];
+		 int n = 0;
+		 for(String line : lines) {
+			 String[] tok = line.trim().split("\\s+", 3);
+			 if(tok[0].isEmpty() || tok[0].startsWith("#")) {
+				 continue;
+			 }
+			 int type = Arrays.asList(OP_NAMES).indexOf(tok[0].toLowerCase());
+			 if(type < 0 || tok.length < 2) {
+				 throw new IOException("bad trace line: " + line);
+			 }
+			 types[n] = type == JOIN ? SPLIT : type;
+			 keys[n] = Integer.parseInt(tok[1]);
+			 infos[n] = tok.length > 2 ? tok[2] : tok[1];
+			 n++;
+		 }
+		 return new WorkloadReplay(Arrays.copyOf(types, n), Arrays.copyOf(keys, n), Arrays.copyOf(infos, n));
+	 }
+
+	 /**
+	  * static WorkloadReplay synthetic(String dist, int ops, int keySpace, int[] mix, long seed)
+	  *
+	  * generates ops operations before the run (so generating them is not timed).
+	  * mix has the percents of insert, delete, search and split.
+	  * keys are drawn from [0, keySpace): zipf (theta 0.99, hot keys scattered over the key space),
+	  * seq (increasing keys, wrapping around), or cluster (a few hot ranges with gaussian spread)
+	  */
+	 static WorkloadReplay synthetic(String dist, int ops, int keySpace, int[] mix, long seed) {
+		 Random random = new Random(seed);
+		 int[] types = new int[ops], keys = new int[ops];
+		 String[] infos = new String[ops];
+		 int total = mix[0] + mix[1] + mix[2] + mix[3];
+		 ZipfGenerator zipf = dist.equals("zipf") ? new ZipfGenerator(keySpace, 0.99) : null;
+		 int[] centers = new int[16];
+		 for(int i=0;i<centers.length;i++) {
+			 centers[i] = random.nextInt(keySpace);
+		 }
+		 for(int i=0;i<ops;i++) {
+			 int r = random.nextInt(total), type = 0;
+			 while(r >= mix[type]) {
+				 r -= mix[type];
+				 type++;
+			 }
+			 int key;
+			 if(zipf != null) {
+				 key = (int)Math.floorMod(zipf.next(random) * 0x9E3779B97F4A7C15L, (long)keySpace);
+			 }
+			 else if(dist.equals("seq")) {
+				 key = i % keySpace;
+			 }
+			 else if(dist.equals("cluster")) {
+				 key = Math.floorMod(centers[random.nextInt(centers.length)] + (int)(random.nextGaussian() * 100), keySpace);
+			 }
+			 else {
+				 throw new IllegalArgumentException("unknown distribution " + dist);
+			 }
+			 types[i] = type;
+			 keys[i] = key;
+			 infos[i] = Integer.toString(key);
+		 }
+		 return new WorkloadReplay(types, keys, infos);
+	 }
+
+	 /**
+	  * String run(int threads, double rate)
+	  *
+	  * runs all the operations, thread t takes operations t, t+threads, t+2*threads...
+	  * with rate > 0 operation i is due at start + i/rate and its latency counts from then,
+	  * with rate 0 (closed loop) it counts from when the thread started it.
+	  * returns the JSON report
+	  */
+	 String run(int threads, double rate) throws InterruptedException {
+		 LatencyHistogram[][] hist = new LatencyHistogram[threads][OP_NAMES.length];
+		 for(LatencyHistogram[] h : hist) {
+			 for(int j=0;j<h.length;j++) {
+				 h[j] = new LatencyHistogram();
+			 }
+		 }
+		 long gcCount0 = 0, gcTime0 = 0;
+		 for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			 gcCount0 += gc.getCollectionCount();
+			 gcTime0 += gc.getCollectionTime();
+		 }
+		 long start = System.nanoTime() + 10_000_000;
+		 Thread[] workers = new Thread[threads];
+		 for(int t=0;t<threads;t++) {
+			 final int first = t;
+			 final LatencyHistogram[] h = hist[t];
+			 workers[t] = new Thread(() -> {
+				 for(int i=first;i<types.length && failure == null;i+=threads) {
+					 long due = rate > 0 ? start + (long)(i * 1e9 / rate) : System.nanoTime();
+					 long wait;
+					 while(rate > 0 && (wait = due - System.nanoTime()) > 0) {
+						 if(wait > 200_000) { //parking overshoots by tens of microseconds, so spin the last part
+							 LockSupport.parkNanos(wait - 100_000);
+						 }
+						 else {
+							 Thread.onSpinWait();
+						 }
+					 }
+					 try {
+						 apply(i, due, h);
+					 }
+					 catch(RuntimeException e) {
+						 failure = e;
+					 }
+				 }
+			 }, "replay-" + t);
+			 workers[t].start();
+		 }
+		 for(Thread w : workers) {
+			 w.join();
+		 }
+		 long elapsed = System.nanoTime() - start;
+		 long gcCount = -gcCount0, gcTime = -gcTime0;
+		 for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			 gcCount += gc.getCollectionCount();
+			 gcTime += gc.getCollectionTime();
+		 }
+		 StringBuilder sb = new StringBuilder("{\n");
+		 if(failure != null) {
+			 sb.append("  \"error\": \"").append(String.valueOf(failure).replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\n");
+		 }
+		 sb.append("  \"ops\": ").append(types.length).append(",\n");
+		 sb.append("  \"threads\": ").append(threads).append(",\n");
+		 sb.append("  \"rate\": ").append(rate).append(",\n");
+		 sb.append("  \"elapsedMs\": ").append(elapsed / 1_000_000).append(",\n");
+		 sb.append("  \"throughput\": ").append((long)(types.length * 1e9 / elapsed)).append(",\n");
+		 sb.append("  \"rotations\": ").append(rotations).append(",\n");
+		 sb.append("  \"joinCost\": ").append(joinCost).append(",\n");
+		 sb.append("  \"skippedSplits\": ").append(skipped).append(",\n");
+		 sb.append("  \"finalSize\": ").append(tree.size()).append(",\n");
+		 sb.append("  \"gcCount\": ").append(gcCount).append(",\n");
+		 sb.append("  \"gcTimeMs\": ").append(gcTime).append(",\n");
+		 sb.append("  \"latencyNs\": {");
+		 for(int j=0;j<OP_NAMES.length;j++) {
+			 LatencyHistogram merged = new LatencyHistogram();
+			 for(LatencyHistogram[] h : hist) {
+				 merged.add(h[j]);
+			 }
+			 sb.append(j == 0 ? "\n" : ",\n").append("    \"").append(OP_NAMES[j]).append("\": ").append(merged.toJson());
+		 }
+		 return sb.append("\n  }\n}").toString();
+	 }
+
+	 //applies operation i under the tree lock and records its latency counted from due
+	 private void apply(int i, long due, LatencyHistogram[] h) {
+		 int key = keys[i];
+		 synchronized(lock) {
+			 switch(types[i]) {
+			 case INSERT:
+				 rotations += Math.max(0, tree.insert(key, infos[i]));
+				 break;
+			 case DELETE:
+				 rotations += Math.max(0, tree.delete(key));
+				 break;
+			 case SEARCH:
+				 tree.search(key);
+				 break;
+			 default:
+				 IAVLNode node = tree.searchNode(key);
+				 if(node == null) { //split needs the key to be in the tree
+					 skipped++;
+					 return;
+				 }
+				 String info = node.getValue();
+				 AVLTree[] parts = tree.split(key);
+				 long mid = System.nanoTime();
+				 h[SPLIT].record(mid - due);
+				 joinCost += parts[0].join(parts[0].new AVLNode(key, info), parts[1]);
+				 tree = parts[0];
+				 h[JOIN].record(System.nanoTime() - mid);
+				 return;
+			 }
+		 }
+		 h[types[i]].record(System.nanoTime() - due);
+	 }
+
+	 /**
+	  * static class LatencyHistogram
+	  *
+	  * a log-linear histogram of nanosecond latencies: 16 linear sub-buckets for every power of 2,
+	  * so a percentile is off by at most about 6%, recording is O(1) without allocating
+	  */
+	 static class LatencyHistogram {
+		 private static final int SUB_BITS = 4;
+		 private final long[] counts = new long[(64 - SUB_BITS + 1) << SUB_BITS];
+		 private long count, max, sum;
+
+		 void record(long ns) {
+			 ns = Math.max(0, ns);
+			 counts[index(ns)]++;
+			 count++;
+			 sum += ns;
+			 max = Math.max(max, ns);
+		 }
+
+		 void add(LatencyHistogram other) {
+			 for(int i=0;i<counts.length;i++) {
+				 counts[i] += other.counts[i];
+			 }
+			 count += other.count;
+			 sum += other.sum;
+			 max = Math.max(max, other.max);
+		 }
+
+		 //returns the highest latency of the bucket the p-th fraction of the values falls in
+		 long percentile(double p) {
+			 long rank = (long)Math.ceil(p * count);
+			 long seen = 0;
+			 for(int i=0;i<counts.length;i++) {
+				 seen += counts[i];
+				 if(seen >= rank && counts[i] > 0) {
+					 return Math.min(max, upper(i));
+				 }
+			 }
+			 return max;
+		 }
+
+		 String toJson() {
+			 return "{\"count\": " + count + ", \"mean\": " + (count == 0 ? 0 : sum / count)
+					 + ", \"p50\": " + percentile(0.5) + ", \"p90\": " + percentile(0.9) + ", \"p99\": " + percentile(0.99)
+					 + ", \"p999\": " + percentile(0.999) + ", \"max\": " + max + "}";
+		 }
+
+		 //values below 16 get their own bucket, bigger ones are bucketed by their top bit and the 4 bits below it
+		 private static int index(long v) {
+			 if(v < (1 << SUB_BITS)) {
+				 return (int)v;
+			 }
+			 int exp = 64 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+			 return (exp << SUB_BITS) + (int)((v >>> (exp - 1)) & ((1 << SUB_BITS) - 1));
+		 }
+
+		 //the highest value which falls in bucket i
+		 private static long upper(int i) {
+			 int exp = i >>> SUB_BITS;
+			 long sub = i & ((1 << SUB_BITS) - 1);
+			 if(exp == 0) {
+				 return sub;
+			 }
+			 return (((1L << SUB_BITS) + sub + 1) << (exp - 1)) - 1;
+		 }
+	 }
+
+	 //zipfian ranks in [0, n) with the constant time method of Gray et al. (as in YCSB), rank 0 is the hottest
+	 static class ZipfGenerator {
+		 private final long n;
+		 private final double theta, alpha, zetan, eta;
+
+		 ZipfGenerator(long n, double theta) {
+			 this.n = n;
+			 this.theta = theta;
+			 double zeta2 = 1 + Math.pow(0.5, theta), z = 0;
+			 for(long i=1;i<=n;i++) {
+				 z += 1 / Math.pow(i, theta);
+			 }
+			 zetan = z;
+			 alpha = 1 / (1 - theta);
+			 eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetan);
+		 }
+
+		 long next(Random random) {
+			 double u = random.nextDouble(), uz = u * zetan;
+			 if(uz < 1) {
+				 return 0;
+			 }
+			 if(uz < 1 + Math.pow(0.5, theta)) {
+				 return 1;
+			 }
+			 return Math.min(n - 1, (long)(n * Math.pow(eta * u - eta + 1, alpha)));
+		 }
+	 }
+ }
+
+
+ /**
+  * public static class ShardServer
+  *
+  * one shard of a range partitioned tree: an AVLTree served over a local socket, run in its own process with
+  * java AVLTree$ShardServer [port] (it prints the port it listens on), or inside a test with new ShardServer(0).
+  * every request is one opcode byte and its arguments, every reply starts with OK and the result,
+  * or ERROR and a message if the operation threw (the connection stays open).
+  * every connection is served by its own thread and the operations on the tree are done under the shard lock.
+  * ranges leave a shard with split (TAKE_ABOVE/TAKE_BELOW, the moved part is written with writeTo)
+  * and enter the neighbour shard with join (PULL makes this shard read them straight from the other shard),
+  * only the split and the join hold the lock, so the shard keeps serving while the range is streamed
+  */
+ public static class ShardServer implements Closeable {
+	 static final byte SEARCH = 1, INSERT = 2, DELETE = 3, RANGE = 4, SIZE = 5, KEY_AT = 6, TAKE_ABOVE = 7, TAKE_BELOW = 8, PULL = 9;
+	 static final byte OK = 0, ERROR = 1; //the first byte of every reply
+	 private final ServerSocket server;
+	 private final Thread acceptor;
+	 private final Object lock = new Object();
+	 private final Set<Socket> connections = ConcurrentHashMap.newKeySet(); //the accepted sockets still open
+	 private AVLTree tree = new AVLTree();
+	 private volatile boolean closed;
+
+	 /**
+	  * public ShardServer(int port)
+	  *
+	  * starts serving an empty shard on the loopback address, port 0 picks a free port
+	  */
+	 public ShardServer(int port) throws IOException {
+		 server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		 acceptor = new Thread(this::acceptLoop, "shard-" + getPort());
+		 acceptor.setDaemon(true);
+		 acceptor.start();
+	 }
+
+	 public static void main(String[] args) throws Exception {
+		 ShardServer shard = new ShardServer(args.length > 0 ? Integer.parseInt(args[0]) : 0);
+		 System.out.println(shard.getPort());
+		 shard.acceptor.join();
+	 }
+
+	 public int getPort() {
+		 return server.getLocalPort();
+	 }
+
+	 public InetSocketAddress getAddress() {
+		 return new InetSocketAddress(server.getInetAddress(), getPort());
+	 }
+
+	 //stops accepting and closes every open connection, their threads end on the closed socket
+	 public void close() throws IOException {
+		 closed = true;
+		 server.close();
+		 for(Socket s : connections) {
+			 try {
+				 s.close();
+			 }
+			 catch(IOException e) {
+				 //closing anyway
+			 }
+		 }
+	 }
+
+	 private void acceptLoop() {
+		 while(!closed) {
+			 try {
+				 Socket s = server.accept();
+				 connections.add(s);
+				 if(closed) { //close may have run between accept and add
+					 connections.remove(s);
+					 s.close();
+					 return;
+				 }
+				 Thread t = new Thread(() -> serve(s), "shard-" + getPort() + "-conn");
+				 t.setDaemon(true);
+				 t.start();
+			 }
+			 catch(IOException e) {
+				 if(closed) {
+					 return;
+				 }
+			 }
+		 }
+	 }
+
+	 //serves the requests of one connection until it is closed, an operation which throws gets an ERROR reply
+	 private void serve(Socket s) {
+		 try(Socket socket = s;
+				 DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+			 socket.setTcpNoDelay(true);
+			 int op;
+			 while((op = in.read()) >= 0) {
+				 try {
+					 handle(op, in, out);
+				 }
+				 catch(RuntimeException e) {
+					 out.write(ERROR);
+					 writeString(out, e.toString());
+				 }
+				 out.flush();
+			 }
+		 }
+		 catch(IOException e) {
+			 //the other side went away, nothing to answer
+		 }
+		 finally {
+			 connections.remove(s);
+		 }
+	 }
+
+	 /**
+	  * private void handle(int op, DataInputStream in, DataOutputStream out)
+	  *
+	  * reads the arguments of op, does it and writes the reply.
+	  * nothing is written before the operation is done, so if it throws serve can still send an ERROR reply
+	  */
+	 private void handle(int op, DataInputStream in, DataOutputStream out) throws IOException {
+		 switch(op) {
+		 case SEARCH: {
+			 int k = in.readInt();
+			 String info;
+			 synchronized(lock) {
+				 info = tree.search(k);
+			 }
+			 out.write(OK);
+			 writeString(out, info);
+			 break;
+		 }
+		 case INSERT: {
+			 int k = in.readInt();
+			 String info = readString(in);
+			 int result;
+			 synchronized(lock) {
+				 result = tree.insert(k, info);
+			 }
+			 out.write(OK);
+			 out.writeInt(result);
+			 break;
+		 }
+		 case DELETE: {
+			 int k = in.readInt();
+			 int result;
+			 synchronized(lock) {
+				 result = tree.delete(k);
+			 }
+			 out.write(OK);
+			 out.writeInt(result);
+			 break;
+		 }
+		 case RANGE: {
+			 int lo = in.readInt(), hi = in.readInt();
+			 List<Integer> keys = new ArrayList<>();
+			 List<String> info = new ArrayList<>();
+			 synchronized(lock) {
+				 for(IAVLNode node = tree.ceiling(lo); node != null && node.getKey() <= hi; node = tree.liveSuccessor(node)) {
+					 keys.add(node.getKey());
+					 info.add(node.getValue());
+				 }
+			 }
+			 out.write(OK);
+			 out.writeInt(keys.size());
+			 for(int i=0;i<keys.size();i++) {
+				 out.writeInt(keys.get(i));
+				 writeString(out, info.get(i));
+			 }
+			 break;
+		 }
+		 case SIZE: {
+			 int size;
+			 synchronized(lock) {
+				 size = tree.size();
+			 }
+			 out.write(OK);
+			 out.writeInt(size);
+			 break;
+		 }
+		 case KEY_AT: {
+			 int rank = in.readInt();
+			 int k;
+			 synchronized(lock) {
+				 k = keyAt(rank);
+			 }
+			 out.write(OK);
+			 out.writeInt(k);
+			 break;
+		 }
+		 case TAKE_ABOVE:
+		 case TAKE_BELOW: {
+			 AVLTree moved = take(op == TAKE_ABOVE, in.readInt());
+			 out.write(OK);
+			 moved.writeTo(out);
+			 break;
+		 }
+		 case PULL: {
+			 int dir = in.read();
+			 int k = in.readInt();
+			 String host = readString(in);
+			 int port = in.readInt();
+			 int moved;
+			 try {
+				 moved = pull(dir, k, new InetSocketAddress(host, port));
+			 }
+			 catch(IOException e) { //a failed move is an answer to the router, not a broken connection
+				 throw new UncheckedIOException(e);
+			 }
+			 out.write(OK);
+			 out.writeInt(moved);
+			 break;
+		 }
+		 default:
+			 throw new IOException("unknown shard op " + op);
+		 }
+	 }
+
+	 /**
+	  * private AVLTree take(boolean above, int b)
+	  *
+	  * removes the keys >= b (above) or < b (below) from the shard and returns them as a tree.
+	  * the shard tree is split at the moving key nearest to b (the first key >= b, or the last key < b)
+	  * and that key is put back into the part that leaves
+	  * O(log^2 n) under the lock, like split
+	  */
+	 private AVLTree take(boolean above, int b) {
+		 synchronized(lock) {
+			 IAVLNode pivot = above ? tree.ceiling(b) : tree.lower(b);
+			 if(pivot == null) { //nothing moves
+				 return new AVLTree();
+			 }
+			 if((above ? tree.lower(b) : tree.ceiling(b)) == null) { //everything moves
+				 AVLTree moved = tree;
+				 tree = new AVLTree();
+				 return moved;
+			 }
+			 int k = pivot.getKey();
+			 String info = pivot.getValue();
+			 AVLTree[] parts = tree.split(k);
+			 AVLTree moved = above ? parts[1] : parts[0];
+			 tree = above ? parts[0] : parts[1];
+			 moved.insert(k, info);
+			 return moved;
+		 }
+	 }
+
+	 /**
+	  * private int pull(int dir, int b, InetSocketAddress from)
+	  *
+	  * asks the shard at from to TAKE_ABOVE/TAKE_BELOW b and joins what it streams back into this shard,
+	  * the moved keys are all bigger or all smaller than the keys here, so one join with the nearest moved key
+	  * as the middle node is enough. returns the number of keys moved.
+	  * once the other shard took the keys they exist only here: if the join fails they are given back with giveBack,
+	  * if the stream breaks the keys which did not arrive are lost and the IOException says so
+	  */
+	 private int pull(int dir, int b, InetSocketAddress from) throws IOException {
+		 AVLTree moved;
+		 try(Socket socket = new Socket(from.getAddress(), from.getPort());
+				 DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+			 out.write(dir);
+			 out.writeInt(b);
+			 out.flush();
+			 int status = in.read();
+			 if(status != OK) {
+				 throw new IOException("shard " + from + " did not give the range: " + (status == ERROR ? readString(in) : "connection closed"));
+			 }
+			 try {
+				 moved = AVLTree.readFrom(in);
+			 }
+			 catch(IOException e) {
+				 throw new IOException("the range taken from shard " + from + " at " + b + " was lost while it was streamed", e);
+			 }
+		 }
+		 int count = moved.size();
+		 if(count == 0) {
+			 return 0;
+		 }
+		 int[] keys = moved.keysToArray();
+		 String[] info = moved.infoToArray();
+		 try {
+			 synchronized(lock) {
+				 if(tree.empty()) {
+					 tree = moved;
+					 return count;
+				 }
+				 //the middle node of the join has to come out of the moved tree, the one next to this shard's keys
+				 IAVLNode middle = dir == TAKE_ABOVE ? moved.max : moved.min;
+				 int k = middle.getKey();
+				 String middleInfo = middle.getValue();
+				 moved.deleteNode(middle);
+				 tree.join(tree.new AVLNode(k, middleInfo), moved);
+			 }
+		 }
+		 catch(RuntimeException e) {
+			 giveBack(from, keys, info, e);
+		 }
+		 return count;
+	 }
+
+	 /**
+	  * private void giveBack(InetSocketAddress from, int[] keys, String[] info, RuntimeException cause)
+	  *
+	  * undoes a pull whose join failed: the moved keys are taken out of this shard (the ones the join got in)
+	  * and inserted again into the shard they came from, then the failure is thrown as an IOException.
+	  * if they can not be given back either, the IOException reports them as lost
+	  * O(m log n) for m keys, only on this failure path
+	  */
+	 private void giveBack(InetSocketAddress from, int[] keys, String[] info, RuntimeException cause) throws IOException {
+		 synchronized(lock) {
+			 for(int k : keys) {
+				 try {
+					 tree.delete(k);
+				 }
+				 catch(RuntimeException e) {
+					 cause.addSuppressed(e);
+				 }
+			 }
+		 }
+		 try(ShardRouter.ShardClient back = new ShardRouter.ShardClient(from)) {
+			 for(int i=0;i<keys.length;i++) {
+				 back.insert(keys[i], info[i]);
+			 }
+		 }
+		 catch(IOException e) {
+			 IOException lost = new IOException("the join of " + keys.length + " keys [" + keys[0] + ", " + keys[keys.length-1]
+					 + "] failed and they could not be given back to shard " + from + ", they are lost", e);
+			 lost.addSuppressed(cause);
+			 throw lost;
+		 }
+		 throw new IOException("the join of " + keys.length + " keys failed, they were given back to shard " + from, cause);
+	 }
+
+	 //the key with the given rank (0 is the smallest), going down by the live counts of the subtrees, O(log n)
+	 private int keyAt(int rank) {
+		 IAVLNode temp = tree.root;
+		 while(temp != null && temp.isRealNode()) {
+			 int leftSize = ((AVLNode)temp.getLeft()).getLiveSize();
+			 int self = isDead(temp) ? 0 : 1;
+			 if(rank < leftSize) {
+				 temp = temp.getLeft();
+			 }
+			 else if(rank < leftSize + self) {
+				 return temp.getKey();
+			 }
+			 else {
+				 rank -= leftSize + self;
+				 temp = temp.getRight();
+			 }
+		 }
+		 throw new IllegalArgumentException("rank out of range");
+	 }
+
+	 //writes a nullable string: its UTF-8 length (-1 for null) and the bytes
+	 static void writeString(DataOutputStream out, String s) throws IOException {
+		 if(s == null) {
+			 out.writeInt(-1);
+			 return;
+		 }
+		 byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		 out.writeInt(bytes.length);
+		 out.write(bytes);
+	 }
+
+	 static String readString(DataInputStream in) throws IOException {
+		 int len = in.readInt();
+		 if(len < 0) {
+			 return null;
+		 }
+		 byte[] bytes = new byte[len];
+		 in.readFully(bytes);
+		 return new String(bytes, StandardCharsets.UTF_8);
+	 }
+ }
+
+ /**
+  * public static class ShardRouter
+  *
+  * the front of a range partitioned tree: shard i owns the keys in [lowKeys[i], lowKeys[i+1]),
+  * search/insert/delete go to the shard owning the key and range scans go to every shard the range touches.
+  * moveBoundary moves the keys between two neighbour shards (split on one, join on the other, streamed directly
+  * between the two shard processes), addShard adds an empty shard at the end and rebalance evens out the sizes.
+  * while a range moves only the requests for keys inside it wait, the rest of both shards keeps serving.
+  * each shard has one connection, so the requests of a shard are sent one at a time
+  */
+ public static class ShardRouter implements Closeable {
+	 private volatile Routing routing;
+	 private final ReentrantReadWriteLock moveLock = new ReentrantReadWriteLock();
+	 private final Object moveDone = new Object();
+	 private volatile long movingLo = 1, movingHi = 1; //the keys in [movingLo, movingHi) are being moved
+
+	 /**
+	  * public ShardRouter(List<InetSocketAddress> addresses, int[] lowKeys)
+	  *
+	  * connects to the shards, lowKeys[i] is the smallest key of shard i and lowKeys[0] must be Integer.MIN_VALUE
+	  */
+	 public ShardRouter(List<InetSocketAddress> addresses, int[] lowKeys) throws IOException {
+		 if(addresses.size() != lowKeys.length || lowKeys.length == 0 || lowKeys[0] != Integer.MIN_VALUE) {
+			 throw new IllegalArgumentException("every shard needs a low key and the first one must be Integer.MIN_VALUE");
+		 }
+		 ShardClient[] clients = new ShardClient[addresses.size()];
+		 for(int i=0;i<clients.length;i++) {
+			 clients[i] = new ShardClient(addresses.get(i));
+		 }
+		 this.routing = new Routing(lowKeys.clone(), clients);
+	 }
+
+	 public String search(int k) throws IOException {
+		 return call(k, c -> c.search(k));
+	 }
+
+	 public int insert(int k, String info) throws IOException {
+		 return call(k, c -> c.insert(k, info));
+	 }
+
+	 public int delete(int k) throws IOException {
+		 return call(k, c -> c.delete(k));
+	 }
+
+	 /**
+	  * public Range range(int lo, int hi)
+	  *
+	  * returns the keys in [lo, hi] and their info, asking the shards the range touches in order
+	  */
+	 public Range range(int lo, int hi) throws IOException {
+		 while(true) {
+			 moveLock.readLock().lock();
+			 try {
+				 if(movingLo >= movingHi || hi < movingLo || lo >= movingHi) {
+					 List<Integer> keys = new ArrayList<>();
+					 List<String> info = new ArrayList<>();
+					 Routing r = routing;
+					 for(int i=route(r.lowKeys, lo);i<r.shards.length && (i == 0 || r.lowKeys[i] <= hi);i++) {
+						 synchronized(r.shards[i]) {
+							 r.shards[i].range(lo, hi, keys, info);
+						 }
+					 }
+					 int[] arr = new int[keys.size()];
+					 for(int i=0;i<arr.length;i++) {
+						 arr[i] = keys.get(i);
+					 }
+					 return new Range(arr, info.toArray(new String[0]));
+				 }
+			 }
+			 finally {
+				 moveLock.readLock().unlock();
+			 }
+			 awaitMove();
+		 }
+	 }
+
+	 /**
+	  * public static class Range
+	  *
+	  * the result of range: the keys in increasing order and their info, read from the shards at the time of the call
+	  */
+	 public static class Range {
+		 private final int[] keys;
+		 private final String[] info;
+
+		 Range(int[] keys, String[] info) {
+			 this.keys = keys;
+			 this.info = info;
+		 }
+
+		 public int size() {
+			 return keys.length;
+		 }
+
+		 //returns a copy of the keys, O(size)
+		 public int[] keysToArray() {
+			 return keys.clone();
+		 }
+
+		 //returns a copy of the info of the keys in the same order, O(size)
+		 public String[] infoToArray() {
+			 return info.clone();
+		 }
+	 }
+
+	 //returns the sizes of the shards
+	 public int[] sizes() throws IOException {
+		 ShardClient[] clients = routing.shards;
+		 int[] sizes = new int[clients.length];
+		 for(int i=0;i<clients.length;i++) {
+			 synchronized(clients[i]) {
+				 sizes[i] = clients[i].size();
+			 }
+		 }
+		 return sizes;
+	 }
+
+	 public int[] lowKeys() {
+		 return routing.lowKeys.clone();
+	 }
+
+	 /**
+	  * public synchronized int moveBoundary(int i, int newLow)
+	  *
+	  * makes newLow the smallest key of shard i: the keys in [newLow, lowKeys[i]) move from shard i-1 to shard i,
+	  * or the keys in [lowKeys[i], newLow) move from shard i to shard i-1.
+	  * the receiving shard pulls them straight from the other one, then the routing table is changed.
+	  * returns the number of keys moved. a move is not crash safe, if a shard dies in the middle the keys in flight are lost
+	  */
+	 public synchronized int moveBoundary(int i, int newLow) throws IOException {
+		 Routing r = routing;
+		 int[] low = r.lowKeys;
+		 if(i < 1 || i >= low.length || newLow <= low[i-1] || (i+1 < low.length && newLow >= low[i+1])) {
+			 throw new IllegalArgumentException("the new low key must stay between the neighbour shards");
+		 }
+		 if(newLow == low[i]) {
+			 return 0;
+		 }
+		 ShardClient from = newLow < low[i] ? r.shards[i-1] : r.shards[i];
+		 ShardClient to = newLow < low[i] ? r.shards[i] : r.shards[i-1];
+		 byte dir = newLow < low[i] ? ShardServer.TAKE_ABOVE : ShardServer.TAKE_BELOW;
+		 startMove(Math.min(newLow, low[i]), Math.max(newLow, low[i]));
+		 try(ShardClient control = new ShardClient(to.address)) {
+			 int moved = control.pull(dir, newLow, from.address);
+			 int[] next = low.clone();
+			 next[i] = newLow;
+			 routing = new Routing(next, r.shards);
+			 return moved;
+		 }
+		 finally {
+			 endMove();
+		 }
+	 }
+
+	 /**
+	  * public synchronized void addShard(InetSocketAddress address)
+	  *
+	  * adds an empty shard after the last one, call rebalance to give it keys
+	  * (it starts with the range [Integer.MAX_VALUE, ...], so only that key moves to it now)
+	  */
+	 public synchronized void addShard(InetSocketAddress address) throws IOException {
+		 Routing r = routing;
+		 int[] low = r.lowKeys;
+		 if(low[low.length-1] == Integer.MAX_VALUE) {
+			 throw new IllegalArgumentException("the last shard cannot be split any more");
+		 }
+		 ShardClient client = new ShardClient(address);
+		 startMove(Integer.MAX_VALUE, (long)Integer.MAX_VALUE + 1);
+		 try(ShardClient control = new ShardClient(address)) {
+			 control.pull(ShardServer.TAKE_ABOVE, Integer.MAX_VALUE, r.shards[low.length-1].address);
+			 ShardClient[] next = Arrays.copyOf(r.shards, low.length+1);
+			 next[low.length] = client;
+			 int[] nextLow = Arrays.copyOf(low, low.length+1);
+			 nextLow[low.length] = Integer.MAX_VALUE;
+			 routing = new Routing(nextLow, next); //one write, a reader sees both arrays of the same version
+		 }
+		 catch(IOException | RuntimeException e) {
+			 client.close();
+			 throw e;
+		 }
+		 finally {
+			 endMove();
+		 }
+	 }
+
+	 /**
+	  * public synchronized int rebalance()
+	  *
+	  * evens out the sizes of the shards. the targets come from the total size up front:
+	  * the shards before boundary i should hold total*i/m keys (m shards), so every boundary has a fixed goal.
+	  * the boundaries are moved left to right, the new boundary is found with KEY_AT on the shard giving keys.
+	  * a shard only gives what it has (it keeps at least one key), so keys can travel only one shard to the left
+	  * per pass; the passes repeat until nothing moves, which takes at most m passes when no writes come in
+	  * (the bound of m passes also keeps concurrent writes from making it run forever).
+	  * returns the number of keys moved
+	  */
+	 public synchronized int rebalance() throws IOException {
+		 int total = 0;
+		 ShardClient[] shards = routing.shards; //only addShard changes them and it waits for this method
+		 long all = 0;
+		 for(int size : sizes()) {
+			 all += size;
+		 }
+		 for(int pass=0;pass<shards.length;pass++) {
+			 int moved = 0;
+			 for(int i=1;i<shards.length;i++) {
+				 int[] sizes = sizes();
+				 long left = 0; //the keys before boundary i
+				 for(int j=0;j<i;j++) {
+					 left += sizes[j];
+				 }
+				 long target = all * i / shards.length;
+				 if(left > target) {
+					 int keep = (int)Math.max(1, sizes[i-1] - (left-target));
+					 if(keep < sizes[i-1]) {
+						 int k;
+						 synchronized(shards[i-1]) {
+							 k = shards[i-1].keyAt(keep);
+						 }
+						 moved += moveBoundary(i, k);
+					 }
+				 }
+				 else if(left < target) {
+					 int give = (int)Math.min(target-left, sizes[i]-1);
+					 if(give > 0) {
+						 int k;
+						 synchronized(shards[i]) {
+							 k = shards[i].keyAt(give);
+						 }
+						 moved += moveBoundary(i, k);
+					 }
+				 }
+			 }
+			 total += moved;
+			 if(moved == 0) {
+				 break;
+			 }
+		 }
+		 return total;
+	 }
+
+	 public void close() throws IOException {
+		 for(ShardClient c : routing.shards) {
+			 c.close();
+		 }
+	 }
+
+	 //the shard owning k: the last i with low[i] <= k
+	 private static int route(int[] low, int k) {
+		 int a = 0, b = low.length-1;
+		 while(a < b) {
+			 int mid = (a+b+1) >>> 1;
+			 if(low[mid] <= k) {
+				 a = mid;
+			 }
+			 else {
+				 b = mid-1;
+			 }
+		 }
+		 return a;
+	 }
+
+	 //sends one request for key k to its shard, waiting first if k is being moved
+	 private <T> T call(int k, ShardCall<T> request) throws IOException {
+		 while(true) {
+			 moveLock.readLock().lock();
+			 try {
+				 if(k < movingLo || k >= movingHi) {
+					 Routing r = routing;
+					 ShardClient c = r.shards[route(r.lowKeys, k)];
+					 synchronized(c) {
+						 return request.send(c);
+					 }
+				 }
+			 }
+			 finally {
+				 moveLock.readLock().unlock();
+			 }
+			 awaitMove();
+		 }
+	 }
+
+	 //marks [lo, hi) as moving, once the requests already sent to it are done
+	 private void startMove(long lo, long hi) {
+		 moveLock.writeLock().lock();
+		 try {
+			 synchronized(moveDone) {
+				 movingLo = lo;
+				 movingHi = hi;
+			 }
+		 }
+		 finally {
+			 moveLock.writeLock().unlock();
+		 }
+	 }
+
+	 private void endMove() {
+		 moveLock.writeLock().lock();
+		 try {
+			 synchronized(moveDone) {
+				 movingLo = movingHi = 1;
+				 moveDone.notifyAll();
+			 }
+		 }
+		 finally {
+			 moveLock.writeLock().unlock();
+		 }
+	 }
+
+	 private void awaitMove() throws IOException {
+		 synchronized(moveDone) {
+			 while(movingLo < movingHi) {
+				 try {
+					 moveDone.wait();
+				 }
+				 catch(InterruptedException e) {
+					 Thread.currentThread().interrupt();
+					 throw new InterruptedIOException("interrupted while a range was moving");
+				 }
+			 }
+		 }
+	 }
+
+	 //the routing table, the low keys and the shards are replaced together as one immutable object
+	 private static final class Routing {
+		 final int[] lowKeys;
+		 final ShardClient[] shards;
+		 Routing(int[] lowKeys, ShardClient[] shards) {
+			 this.lowKeys = lowKeys;
+			 this.shards = shards;
+		 }
+	 }
+
+	 private interface ShardCall<T> {
+		 T send(ShardClient c) throws IOException;
+	 }
+
+	 //one connection to a shard, the caller sends one request at a time
+	 private static class ShardClient implements Closeable {
+		 final InetSocketAddress address;
+		 private final Socket socket;
+		 private final DataInputStream in;
+		 private final DataOutputStream out;
+
+		 ShardClient(InetSocketAddress address) throws IOException {
+			 this.address = address;
+			 socket = new Socket(address.getAddress(), address.getPort());
+			 socket.setTcpNoDelay(true);
+			 in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			 out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		 }
+
+		 String search(int k) throws IOException {
+			 out.write(ShardServer.SEARCH);
+			 out.writeInt(k);
+			 out.flush();
+			 status();
+			 return ShardServer.readString(in);
+		 }
+
+		 int insert(int k, String info) throws IOException {
+			 out.write(ShardServer.INSERT);
+			 out.writeInt(k);
+			 ShardServer.writeString(out, info);
+			 out.flush();
+			 status();
+			 return in.readInt();
+		 }
+
+		 int delete(int k) throws IOException {
+			 out.write(ShardServer.DELETE);
+			 out.writeInt(k);
+			 out.flush();
+			 status();
+			 return in.readInt();
+		 }
+
+		 void range(int lo, int hi, List<Integer> keys, List<String> info) throws IOException {
+			 out.write(ShardServer.RANGE);
+			 out.writeInt(lo);
+			 out.writeInt(hi);
+			 out.flush();
+			 status();
+			 int n = in.readInt();
+			 for(int i=0;i<n;i++) {
+				 keys.add(in.readInt());
+				 info.add(ShardServer.readString(in));
+			 }
+		 }
+
+		 int size() throws IOException {
+			 out.write(ShardServer.SIZE);
+			 out.flush();
+			 status();
+			 return in.readInt();
+		 }
+
+		 int keyAt(int rank) throws IOException {
+			 out.write(ShardServer.KEY_AT);
+			 out.writeInt(rank);
+			 out.flush();
+			 status();
+			 return in.readInt();
+		 }
+
+		 int pull(byte dir, int b, InetSocketAddress from) throws IOException {
+			 out.write(ShardServer.PULL);
+			 out.write(dir);
+			 out.writeInt(b);
+			 ShardServer.writeString(out, from.getAddress().getHostAddress());
+			 out.writeInt(from.getPort());
+			 out.flush();
+			 status();
+			 return in.readInt();
+		 }
+
+		 //reads the status byte of a reply, an ERROR reply becomes an IOException and the connection stays usable
+		 private void status() throws IOException {
+			 int status = in.read();
+			 if(status == ShardServer.ERROR) {
+				 throw new IOException("shard " + address + ": " + ShardServer.readString(in));
+			 }
+			 if(status != ShardServer.OK) {
+				 throw new EOFException("shard " + address + " closed the connection");
+			 }
+		 }
+
+		 public void close() throws IOException {
+			 socket.close();
+		 }
+	 }
+ }
+
+
+ /**
+  * public static class DurableAVLTree
+  *
+  * an optional durability layer over an AVLTree: every insert/delete which changed the tree is appended
+  * to a write ahead log in a directory, each record is [length][CRC32][lsn, op, key, info].
+  * how it reaches the disk is set by the FsyncPolicy:
+  * PER_OP forces the log after every operation, PER_BATCH is group commit (every operation waits until it is durable,
+  * but one force covers all the operations which queued while the previous force ran),
+  * INTERVAL returns right away and the log is forced every intervalMillis.
+  * every checkpointEveryOps operations (and on checkpoint()) the tree is written with writeTo to a new checkpoint
+  * file, together with the last lsn it contains, and the log starts over.
+  * one syncer thread does all the writing, forcing and truncating of the log, the callers only add records in memory
+  * and wait for it without being interruptible, so an interrupted caller can not close the log channel
+  * (a FileChannel closes itself when a thread blocked in it is interrupted) and lose the records of the others.
+  * open recovers by reading the checkpoint and replaying the log records after its lsn,
+  * a torn or corrupt record at the end of the log (a crash in the middle of a write) ends the replay and is cut off.
+  * all the methods are thread safe
+  */
+ public static class DurableAVLTree implements Closeable {
+	 private static final byte INSERT = 1, DELETE = 2;
+	 private static final int CHECKPOINT_MAGIC = 0x41564c43; //"AVLC"
+	 private final Path dir, logFile, checkpointFile;
+	 private final FsyncPolicy policy;
+	 private final int checkpointEveryOps;
+	 private final long intervalNanos; //INTERVAL only, 0 otherwise
+	 private final ReentrantLock lock = new ReentrantLock();
+	 private final Condition synced = lock.newCondition(); //the syncer made progress (or failed)
+	 private final Condition work = lock.newCondition(); //there is something for the syncer to do
+	 private final ByteArrayOutputStream pendingBytes = new ByteArrayOutputStream(); //records not written to the log yet
+	 private final DataOutputStream pending = new DataOutputStream(pendingBytes);
+	 private final Thread syncer;
+	 private final AVLTree tree;
+	 private final int recovered;
+	 private FileChannel log;
+	 private long lastLsn, durableLsn, requestedLsn; //requestedLsn: the highest lsn a caller waits for
+	 private long checkpointsRequested, checkpointsDone;
+	 private int opsSinceCheckpoint;
+	 private boolean opWaiting; //PER_OP: a write waits for its force, the next write waits for it
+	 private boolean closed; //no more operations, the syncer makes the rest durable and stops
+	 private IOException failure; //once the log failed the tree may be ahead of it, so nothing more is accepted
+
+	 //when the log is forced to the disk
+	 public enum FsyncPolicy {
+		 PER_OP, PER_BATCH, INTERVAL
+	 }
+
+	 /**
+	  * public static DurableAVLTree open(Path dir, FsyncPolicy policy, long intervalMillis, int checkpointEveryOps)
+	  *
+	  * opens (or creates) the durable tree kept in dir and recovers it.
+	  * intervalMillis is used by INTERVAL only, checkpointEveryOps 0 means only explicit checkpoints
+	  * recovery is O(n) for the checkpoint + O(m log n) for the m log records
+	  */
+	 public static DurableAVLTree open(Path dir, FsyncPolicy policy, long intervalMillis, int checkpointEveryOps) throws IOException {
+		 return new DurableAVLTree(dir, policy, intervalMillis, checkpointEveryOps);
+	 }
+
+	 private DurableAVLTree(Path dir, FsyncPolicy policy, long intervalMillis, int checkpointEveryOps) throws IOException {
+		 this.dir = dir;
+		 this.policy = policy;
+		 this.checkpointEveryOps = checkpointEveryOps;
+		 Files.createDirectories(dir);
+		 logFile = dir.resolve("wal.log");
+		 checkpointFile = dir.resolve("checkpoint.avl");
+		 long checkpointLsn = 0;
+		 if(Files.exists(checkpointFile)) {
+			 try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(checkpointFile)))) {
+				 if(in.readInt() != CHECKPOINT_MAGIC) {
+					 throw new IOException("not a checkpoint file: " + checkpointFile);
+				 }
+				 checkpointLsn = in.readLong();
+				 tree = AVLTree.readFrom(in);
+			 }
+		 }
+		 else {
+			 tree = new AVLTree();
+		 }
+		 lastLsn = checkpointLsn;
+		 boolean newLog = !Files.exists(logFile);
+		 log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		 if(newLog) {
+			 forceDirectory();
+		 }
+		 long validEnd = 0;
+		 int replayed = 0;
+		 try(DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(log)))) {
+			 CRC32 crc = new CRC32();
+			 while(true) {
+				 int len, sum;
+				 byte[] payload;
+				 try {
+					 len = in.readInt();
+					 sum = in.readInt();
+					 if(len < 13 || len > (1 << 30)) {
+						 break;
+					 }
+					 payload = new byte[len];
+					 in.readFully(payload);
+				 }
+				 catch(EOFException e) {
+					 break;
+				 }
+				 crc.reset();
+				 crc.update(payload);
+				 if((int)crc.getValue() != sum) {
+					 break;
+				 }
+				 validEnd += 8 + len;
+				 DataInputStream rec = new DataInputStream(new ByteArrayInputStream(payload));
+				 long lsn = rec.readLong();
+				 byte op = rec.readByte();
+				 int key = rec.readInt();
+				 if(lsn > checkpointLsn) {
+					 if(op == INSERT) {
+						 tree.insert(key, readString(rec));
+					 }
+					 else {
+						 tree.delete(key);
+					 }
+					 replayed++;
+					 lastLsn = lsn;
+				 }
+			 }
+		 }
+		 //closing the stream closed the channel, open it again to append after the last good record
+		 log = FileChannel.open(logFile, StandardOpenOption.WRITE);
+		 log.truncate(validEnd);
+		 log.position(validEnd);
+		 durableLsn = requestedLsn = lastLsn;
+		 recovered = replayed;
+		 intervalNanos = policy == FsyncPolicy.INTERVAL ? Math.max(1, intervalMillis) * 1_000_000L : 0;
+		 syncer = new Thread(this::syncLoop, "wal-syncer");
+		 syncer.setDaemon(true);
+		 syncer.start();
+	 }
+
+	 /**
+	  * public int insert(int k, String info)
+	  *
+	  * inserts into the tree and, if it changed, logs the insert as the policy says
+	  * returns the value of AVLTree.insert
+	  */
+	 public int insert(int k, String info) throws IOException {
+		 return write(INSERT, k, info);
+	 }
+
+	 /**
+	  * public int delete(int k)
+	  *
+	  * deletes from the tree and, if it changed, logs the delete as the policy says
+	  * returns the value of AVLTree.delete
+	  */
+	 public int delete(int k) throws IOException {
+		 return write(DELETE, k, null);
+	 }
+
+	 public String search(int k) {
+		 lock.lock();
+		 try {
+			 return tree.search(k);
+		 }
+		 finally {
+			 lock.unlock();
+		 }
+	 }
+
+	 public int size() {
+		 lock.lock();
+		 try {
+			 return tree.size();
+		 }
+		 finally {
+			 lock.unlock();
+		 }
+	 }
+
+	 public int[] keysToArray() {
+		 lock.lock();
+		 try {
+			 return tree.keysToArray();
+		 }
+		 finally {
+			 lock.unlock();
+		 }
+	 }
+
+	 //returns the number of log records replayed when the tree was opened
+	 public int getRecoveredOps() {
+		 return recovered;
+	 }
+
+	 /**
+	  * public void sync()
+	  *
+	  * makes every operation done so far durable, one force for all of them
+	  */
+	 public void sync() throws IOException {
+		 lock.lock();
+		 try {
+			 checkOpen();
+			 awaitDurable(lastLsn);
+		 }
+		 finally {
+			 lock.unlock();
+		 }
+	 }
+
+	 /**
+	  * public void checkpoint()
+	  *
+	  * has the syncer write a checkpoint (writeCheckpoint) and waits for it.
+	  * the writers wait while it runs
+	  * O(n)
+	  */
+	 public void checkpoint() throws IOException {
+		 lock.lock();
+		 try {
+			 checkOpen();
+			 long ticket = ++checkpointsRequested;
+			 work.signal();
+			 while(checkpointsDone < ticket) {
+				 if(failure != null) {
+					 throw new IOException("the checkpoint failed", failure);
+				 }
+				 synced.awaitUninterruptibly();
+			 }
+		 }
+		 finally {
+			 lock.unlock();
+		 }
+	 }
+
+	 /**
+	  * public void close()
+	  *
+	  * stops accepting operations, lets the syncer make everything durable and close the log, and waits for it.
+	  * the syncer is stopped with the closed flag, never interrupted
+	  */
+	 public void close() throws IOException {
+		 lock.lock();
+		 try {
+			 closed = true;
+			 work.signal();
+		 }
+		 finally {
+			 lock.unlock();
+		 }
+		 boolean interrupted = false;
+		 while(true) {
+			 try {
+				 syncer.join();
+				 break;
+			 }
+			 catch(InterruptedException e) {
+				 interrupted = true; //the syncer still has to finish the log, keep waiting for it
+			 }
+		 }
+		 if(interrupted) {
+			 Thread.currentThread().interrupt();
+		 }
+		 lock.lock();
+		 try {
+			 if(failure != null) {
+				 throw new IOException("the log failed, the last operations may not be durable", failure);
+			 }
+		 }
+		 finally {
+			 lock.unlock();
+		 }
+	 }
+
+	 //applies one operation, adds its record if it changed the tree and waits as long as the policy says
+	 private int write(byte op, int k, String info) throws IOException {
+		 int result;
+		 boolean checkpointNow;
+		 lock.lock();
+		 try {
+			 while(opWaiting && failure == null && !closed) { //PER_OP: one operation per force, in lsn order
+				 synced.awaitUninterruptibly();
+			 }
+			 checkOpen();
+			 result = op == INSERT ? tree.insert(k, info) : tree.delete(k);
+			 if(result == -1) { //nothing changed, nothing to log
+				 return result;
+			 }
+			 long lsn = ++lastLsn;
+			 ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(32);
+			 DataOutputStream payload = new DataOutputStream(payloadBytes);
+			 payload.writeLong(lsn);
+			 payload.writeByte(op);
+			 payload.writeInt(k);
+			 if(op == INSERT) {
+				 writeString(payload, info);
+			 }
+			 CRC32 crc = new CRC32();
+			 crc.update(payloadBytes.toByteArray());
+			 pending.writeInt(payloadBytes.size());
+			 pending.writeInt((int)crc.getValue());
+			 payloadBytes.writeTo(pending);
+			 checkpointNow = checkpointEveryOps > 0 && ++opsSinceCheckpoint >= checkpointEveryOps;
+			 if(policy == FsyncPolicy.PER_OP) {
+				 opWaiting = true;
+				 try {
+					 awaitDurable(lsn);
+				 }
+				 finally {
+					 opWaiting = false;
+					 synced.signalAll();
+				 }
+			 }
+			 else if(policy == FsyncPolicy.PER_BATCH) {
+				 awaitDurable(lsn);
+			 }
+		 }
+		 finally {
+			 lock.unlock();
+		 }
+		 if(checkpointNow) {
+			 checkpoint();
+		 }
+		 return result;
+	 }
+
+	 /**
+	  * private void awaitDurable(long lsn)
+	  *
+	  * asks the syncer to make the log durable up to lsn and waits until it did, the lock is held
+	  * (await gives it up while waiting, so the records of other threads join the same force: group commit).
+	  * the wait is not interruptible, an interrupt stays set on the thread
+	  */
+	 private void awaitDurable(long lsn) throws IOException {
+		 if(requestedLsn < lsn) {
+			 requestedLsn = lsn;
+			 work.signal();
+		 }
+		 while(durableLsn < lsn) {
+			 if(failure != null) {
+				 throw new IOException("the log failed, the operation may not be durable", failure);
+			 }
+			 synced.awaitUninterruptibly();
+		 }
+	 }
+
+	 /**
+	  * private void syncLoop()
+	  *
+	  * the syncer thread. it holds the lock except while it waits for work and while it writes and forces
+	  * the pending records (flush), so the next records queue up meanwhile.
+	  * the work is: a requested checkpoint, a requested lsn (PER_OP, PER_BATCH, sync), the end of an interval
+	  * (INTERVAL) and close, after which it flushes what is left, closes the log and ends.
+	  * an error is kept in failure and wakes every waiting caller, so no caller waits forever
+	  */
+	 private void syncLoop() {
+		 lock.lock();
+		 try {
+			 long nextInterval = System.nanoTime() + intervalNanos;
+			 while(true) {
+				 if(checkpointsDone < checkpointsRequested) {
+					 long upTo = checkpointsRequested;
+					 writeCheckpoint();
+					 checkpointsDone = upTo;
+					 synced.signalAll();
+					 continue;
+				 }
+				 long now = System.nanoTime();
+				 boolean due = intervalNanos > 0 && now - nextInterval >= 0;
+				 if(due) {
+					 nextInterval = now + intervalNanos;
+				 }
+				 if(lastLsn > durableLsn && (requestedLsn > durableLsn || due || closed)) {
+					 flush();
+					 continue;
+				 }
+				 if(closed) {
+					 return;
+				 }
+				 if(intervalNanos > 0) {
+					 try {
+						 work.awaitNanos(nextInterval - now);
+					 }
+					 catch(InterruptedException e) {
+						 //nothing interrupts the syncer, the loop looks at its work again anyway
+					 }
+				 }
+				 else {
+					 work.awaitUninterruptibly();
+				 }
+			 }
+		 }
+		 catch(IOException e) {
+			 failure = e;
+		 }
+		 catch(RuntimeException | Error e) {
+			 failure = new IOException("the log syncer stopped", e);
+			 throw e;
+		 }
+		 finally {
+			 closed = true;
+			 try {
+				 log.close();
+			 }
+			 catch(IOException e) {
+				 if(failure == null) {
+					 failure = e;
+				 }
+			 }
+			 synced.signalAll();
+			 lock.unlock();
+		 }
+	 }
+
+	 //writes and forces the pending records without holding the lock, only the syncer calls it
+	 private void flush() throws IOException {
+		 ByteBuffer data = ByteBuffer.wrap(pendingBytes.toByteArray());
+		 pendingBytes.reset();
+		 long upTo = lastLsn;
+		 lock.unlock();
+		 try {
+			 while(data.hasRemaining()) {
+				 log.write(data);
+			 }
+			 log.force(false);
+		 }
+		 finally {
+			 lock.lock();
+		 }
+		 durableLsn = Math.max(durableLsn, upTo);
+		 synced.signalAll();
+	 }
+
+	 /**
+	  * private void writeCheckpoint()
+	  *
+	  * writes the whole tree with the last lsn to checkpoint.avl.tmp, forces it, moves it over checkpoint.avl,
+	  * forces the directory (so a crash can not keep the old checkpoint with the emptied log) and empties the log.
+	  * only the syncer calls it, with the lock held
+	  * O(n)
+	  */
+	 private void writeCheckpoint() throws IOException {
+		 writePending();
+		 Path tmp = dir.resolve("checkpoint.avl.tmp");
+		 try(FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+			 out.writeInt(CHECKPOINT_MAGIC);
+			 out.writeLong(lastLsn);
+			 tree.writeTo(out);
+			 out.flush();
+			 ch.force(true);
+		 }
+		 Files.move(tmp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		 forceDirectory(); //the rename has to be on the disk before the log is emptied
+		 log.truncate(0);
+		 log.position(0);
+		 log.force(true);
+		 durableLsn = lastLsn;
+		 opsSinceCheckpoint = 0;
+	 }
+
+	 //forces the directory entries (the rename of a checkpoint, a new log file) to the disk
+	 private void forceDirectory() throws IOException {
+		 try(FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+			 ch.force(true);
+		 }
+	 }
+
+	 //writes the pending records to the log (without forcing), only the syncer calls it, with the lock held
+	 private void writePending() throws IOException {
+		 ByteBuffer data = ByteBuffer.wrap(pendingBytes.toByteArray());
+		 pendingBytes.reset();
+		 while(data.hasRemaining()) {
+			 log.write(data);
+		 }
+	 }
+
+	 //the info of an insert record: its length in UTF-8 bytes and the bytes, -1 for null
+	 private static void writeString(DataOutputStream out, String s) throws IOException {
+		 if(s == null) {
+			 out.writeInt(-1);
+			 return;
+		 }
+		 byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		 out.writeInt(bytes.length);
+		 out.write(bytes);
+	 }
+
+	 //reads what writeString wrote, the record already passed its CRC check
+	 private static String readString(DataInputStream in) throws IOException {
+		 int len = in.readInt();
+		 if(len < 0) {
+			 return null;
+		 }
+		 byte[] bytes = new byte[len];
+		 in.readFully(bytes);
+		 return new String(bytes, StandardCharsets.UTF_8);
+	 }
+
+	 private void checkOpen() throws IOException {
+		 if(failure != null) {
+			 throw new IOException("the log failed before, the tree is not durable any more", failure);
+		 }
+		 if(closed) {
+			 throw new IOException("the tree is closed");
+		 }
+	 }
+ }
+
 }
  
 